@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.gzinga.GZipOutputStreamRandomAccess;
+
+/**
+ * Generates local log-like data used by benchmarks. Every line has same length, so uncompressed
+ * position of any line is known without reading file.
+ */
+final class BenchmarkData {
+
+	static final int LINE_LENGTH = 64;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * @param i line number
+	 * @return line of LINE_LENGTH bytes including new line
+	 */
+	static byte[] line(long i) {
+		StringBuilder sb = new StringBuilder(LINE_LENGTH);
+		sb.append(1420070400000l + i * 7).append(" INFO request=").append(Long.toHexString(i * 2654435761l))
+				.append(" status=").append(i % 7 == 0 ? 500 : 200).append(" latency=").append(i % 997);
+		while (sb.length() < LINE_LENGTH - 1) {
+			sb.append(' ');
+		}
+		sb.setLength(LINE_LENGTH - 1);
+		sb.append('\n');
+		return sb.toString().getBytes();
+	}
+
+	static byte[][] lines(int count) {
+		byte[][] lines = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			lines[i] = line(i);
+		}
+		return lines;
+	}
+
+	/**
+	 * Writes file with given number of lines where key i is added before line i * linesPerOffset.
+	 * @param file
+	 * @param lines
+	 * @param linesPerOffset
+	 * @throws IOException
+	 */
+	static void write(File file, long lines, int linesPerOffset) throws IOException {
+		GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+		for (long i = 0; i < lines; i++) {
+			if (i % linesPerOffset == 0) {
+				gzip.addOffset(i / linesPerOffset);
+			}
+			gzip.write(line(i));
+		}
+		gzip.close();
+	}
+
+	static File tempFile(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".gz");
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Output stream which only counts bytes, so that benchmarks do not measure disk.
+	 */
+	static final class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gzinga.GZipInputStreamRandomAccess;
+import io.gzinga.OffsetIndexCache;
+import io.gzinga.SeekableInputStream;
+import io.gzinga.SeekableMappedFile;
+import io.gzinga.SeekableRandomAccessFile;
+
+/**
+ * Measures time to open a reader and load its metadata depending upon number of keys in metadata,
+ * with and without shared OffsetIndexCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexLoadBenchmark {
+
+	@Param({"100", "10000", "100000"})
+	public int indexSize;
+
+	@Param({"false", "true"})
+	public boolean cached;
+
+	@Param({"file", "mapped"})
+	public String stream;
+
+	private File file;
+	private long cacheBytes;
+
+	@Setup
+	public void setup() throws IOException {
+		file = BenchmarkData.tempFile("index");
+		BenchmarkData.write(file, indexSize * 2l, 2);
+		cacheBytes = OffsetIndexCache.getShared().getBytes();
+		OffsetIndexCache.getShared().clear();
+		OffsetIndexCache.getShared().setMaxBytes(cached ? 256l * 1024 * 1024 : 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		OffsetIndexCache.getShared().setMaxBytes(Math.max(cacheBytes, 64l * 1024 * 1024));
+		file.delete();
+	}
+
+	@Benchmark
+	public int open() throws IOException {
+		SeekableInputStream in = "mapped".equals(stream) ? new SeekableMappedFile(file)
+				: new SeekableRandomAccessFile(file);
+		GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(in);
+		int size = gzin.getIndex().size();
+		gzin.close();
+		return size;
+	}
+}
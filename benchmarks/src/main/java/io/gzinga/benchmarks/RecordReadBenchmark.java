@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gzinga.GZipInputStreamRandomAccess;
+import io.gzinga.GZipRecordReader;
+
+/**
+ * Measures time to iterate over all lines of file with GZipRecordReader, compared with readLine of
+ * BufferedReader, which decodes and allocates a String per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordReadBenchmark {
+
+	private static final int LINES = 1000000;
+	private static final int LINES_PER_OFFSET = 1000;
+
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = BenchmarkData.tempFile("records");
+		BenchmarkData.write(file, LINES, LINES_PER_OFFSET);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long recordReader() throws IOException {
+		GZipRecordReader records = new GZipRecordReader(new GZipInputStreamRandomAccess(file));
+		long total = 0;
+		while (records.next()) {
+			total += records.getLength();
+		}
+		records.close();
+		return total;
+	}
+
+	@Benchmark
+	public long bufferedReader() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new GZipInputStreamRandomAccess(file),
+				"UTF-8"));
+		long total = 0;
+		String line;
+		while ((line = br.readLine()) != null) {
+			total += line.length();
+		}
+		br.close();
+		return total;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gzinga.GZipInputStreamRandomAccess;
+
+/**
+ * Measures latency of reading 4 KB at a position in file using jumpToIndex, compared with skipping
+ * to same uncompressed position using plain GZIPInputStream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeekBenchmark {
+
+	private static final int LINES = 1000000;
+	private static final int LINES_PER_OFFSET = 1000;
+
+	@Param({"0.1", "0.5", "0.9"})
+	public double position;
+
+	private File file;
+	private long key;
+	private final byte[] buf = new byte[4096];
+
+	@Setup
+	public void setup() throws IOException {
+		file = BenchmarkData.tempFile("seek");
+		BenchmarkData.write(file, LINES, LINES_PER_OFFSET);
+		key = (long) (position * LINES / LINES_PER_OFFSET);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public int jumpToIndex() throws IOException {
+		GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+		gzin.jumpToIndex(key);
+		int n = readFully(gzin);
+		gzin.close();
+		return n;
+	}
+
+	@Benchmark
+	public int gzipSkip() throws IOException {
+		GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(file));
+		long toSkip = key * LINES_PER_OFFSET * BenchmarkData.LINE_LENGTH;
+		while (toSkip > 0) {
+			toSkip -= gzin.skip(toSkip);
+		}
+		int n = readFully(gzin);
+		gzin.close();
+		return n;
+	}
+
+	private int readFully(InputStream in) throws IOException {
+		int total = 0;
+		while (total < buf.length) {
+			int n = in.read(buf, total, buf.length - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gzinga.hadoop.SplittableGZipCodec;
+
+/**
+ * Measures cost of opening all splits of a file with SplittableGZipCodec, which locates member
+ * headers at start and end of every split, depending upon split size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitHeaderBenchmark {
+
+	private static final int LINES = 1000000;
+
+	@Param({"65536", "1048576", "8388608"})
+	public long splitSize;
+
+	@Param({"100", "10000"})
+	public int linesPerOffset;
+
+	private File file;
+	private FileSystem fs;
+	private SplittableGZipCodec codec;
+
+	@Setup
+	public void setup() throws IOException {
+		file = BenchmarkData.tempFile("split");
+		BenchmarkData.write(file, LINES, linesPerOffset);
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		fs = FileSystem.getLocal(conf);
+		codec = ReflectionUtils.newInstance(SplittableGZipCodec.class, conf);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long openSplits() throws IOException {
+		Path path = new Path(file.getAbsolutePath());
+		long len = file.length();
+		long total = 0;
+		for (long start = 0; start < len; start += splitSize) {
+			FSDataInputStream in = fs.open(path);
+			SplitCompressionInputStream split = codec.createInputStream(in, null, start,
+					Math.min(start + splitSize, len), SplittableCompressionCodec.READ_MODE.BYBLOCK);
+			total += split.getAdjustedEnd() - split.getAdjustedStart();
+			split.close();
+		}
+		return total;
+	}
+}
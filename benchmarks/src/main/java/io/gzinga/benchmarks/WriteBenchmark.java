@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gzinga.GZipOutputStreamRandomAccess;
+import io.gzinga.GZipParallelOutputStreamRandomAccess;
+
+/**
+ * Measures write throughput (lines per second) depending upon how often addOffset is invoked.
+ * linesPerOffset of 0 means addOffset is never invoked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+	private static final int LINES = 100000;
+
+	@Param({"0", "10", "100", "1000", "10000"})
+	public int linesPerOffset;
+
+	@Param({"sequential", "parallel"})
+	public String writer;
+
+	private byte[][] lines;
+
+	@Setup
+	public void setup() {
+		lines = BenchmarkData.lines(1000);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public long write() throws IOException {
+		BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+		if ("parallel".equals(writer)) {
+			GZipParallelOutputStreamRandomAccess gzip = new GZipParallelOutputStreamRandomAccess(out);
+			for (int i = 0; i < LINES; i++) {
+				if (linesPerOffset > 0 && i % linesPerOffset == 0) {
+					gzip.addOffset((long) i);
+				}
+				gzip.write(lines[i % lines.length]);
+			}
+			gzip.close();
+		} else {
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(out);
+			for (int i = 0; i < LINES; i++) {
+				if (linesPerOffset > 0 && i % linesPerOffset == 0) {
+					gzip.addOffset((long) i);
+				}
+				gzip.write(lines[i % lines.length]);
+			}
+			gzip.close();
+		}
+		return out.count;
+	}
+}
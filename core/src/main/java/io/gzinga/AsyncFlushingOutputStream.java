@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is a double buffered output stream. Bytes are collected into one buffer while previous
+ * buffer is written into underlying stream by an I/O thread, so writer (e.g. deflater of
+ * GZipOutputStreamRandomAccess) does not wait for disk. If both buffers are full, writer waits until
+ * write of previous buffer completes.
+ *
+ * I/O thread can be owned by stream, or an ExecutorService can be shared by many streams (e.g. one
+ * thread for hundreds of log files). At most one write per stream is in progress at any time, so
+ * bytes are always written in order. Failure of a background write is thrown by every later write,
+ * flush and close, since bytes of failed buffer are lost and nothing written after them is valid.
+ */
+public class AsyncFlushingOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private byte[] current;
+	private byte[] spare;
+	private int count = 0;
+	private Future<?> pending;
+	private boolean closed = false;
+	/*
+	 * First failure of a background write.
+	 */
+	private IOException failure;
+
+	/**
+	 * Creates stream with its own I/O thread and default buffer size.
+	 * @param out
+	 */
+	public AsyncFlushingOutputStream(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates stream with its own I/O thread.
+	 * @param out
+	 * @param bufferSize size of each of two buffers
+	 */
+	public AsyncFlushingOutputStream(OutputStream out, int bufferSize) {
+		this(out, Executors.newSingleThreadExecutor(new DaemonThreadFactory("gzinga-writer")), bufferSize, true);
+	}
+
+	/**
+	 * Creates stream which writes using provided executor. Executor is not shut down when stream
+	 * is closed.
+	 * @param out
+	 * @param executor
+	 * @param bufferSize size of each of two buffers
+	 */
+	public AsyncFlushingOutputStream(OutputStream out, ExecutorService executor, int bufferSize) {
+		this(out, executor, bufferSize, false);
+	}
+
+	private AsyncFlushingOutputStream(OutputStream out, ExecutorService executor, int bufferSize,
+			boolean ownsExecutor) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size <= 0");
+		}
+		this.out = out;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.current = new byte[bufferSize];
+		this.spare = new byte[bufferSize];
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		if (count == current.length) {
+			handOff();
+		}
+		current[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (count == current.length) {
+				handOff();
+			}
+			int n = Math.min(len, current.length - count);
+			System.arraycopy(b, off, current, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes all buffered bytes and flushes underlying stream. This method blocks until write is
+	 * complete.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			handOff();
+		}
+		await();
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			try {
+				out.close();
+			} finally {
+				if (ownsExecutor) {
+					executor.shutdown();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Submits current buffer for writing and swaps buffers. Waits for previous write first, as its
+	 * buffer is reused.
+	 */
+	private void handOff() throws IOException {
+		await();
+		final byte[] buf = current;
+		final int len = count;
+		pending = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				out.write(buf, 0, len);
+				return null;
+			}
+		});
+		current = spare;
+		spare = buf;
+		count = 0;
+	}
+
+	private void await() throws IOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+			pending = null;
+		} catch (InterruptedException e) {
+			// write is still in progress, so pending is kept and buffer is not reused
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for write");
+		} catch (ExecutionException e) {
+			pending = null;
+			Throwable cause = e.getCause();
+			failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			throw failure;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
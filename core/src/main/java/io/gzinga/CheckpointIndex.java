@@ -0,0 +1,325 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * This class maintains inflater checkpoints of an ordinary gzip file, which is stored in a sidecar
+ * file next to it (see GZipIndexBuilder). Every checkpoint has bit offset in compressed file,
+ * offset in uncompressed data and, if checkpoint is inside a member, last 32 KB of uncompressed data
+ * of that member before checkpoint. Checkpoint without window is start of a member.
+ *
+ * Checkpoints inside a member are at deflate block boundaries, which need not be byte aligned.
+ * Inflater of JDK can not be primed with remaining bits of a byte, so reader feeds an empty deflate
+ * block of suitable length before them instead (see alignmentPrefix).
+ */
+public class CheckpointIndex {
+
+	public static final String SIDECAR_SUFFIX = ".gzidx";
+
+	private static final int MAGIC = 0x475a4958; // "GZIX"
+	private static final int VERSION = 1;
+
+	private long[] compressedOffsets = new long[16];
+	private byte[] bitOffsets = new byte[16];
+	private long[] uncompressedOffsets = new long[16];
+	private byte[][] windows = new byte[16][];
+	private int size = 0;
+	private long uncompressedLength = -1;
+
+	CheckpointIndex() {
+	}
+
+	void add(long compressedOffset, int bitOffset, long uncompressedOffset, byte[] window) {
+		if (size == compressedOffsets.length) {
+			compressedOffsets = Arrays.copyOf(compressedOffsets, size * 2);
+			bitOffsets = Arrays.copyOf(bitOffsets, size * 2);
+			uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, size * 2);
+			windows = Arrays.copyOf(windows, size * 2);
+		}
+		compressedOffsets[size] = compressedOffset;
+		bitOffsets[size] = (byte) bitOffset;
+		uncompressedOffsets[size] = uncompressedOffset;
+		windows[size] = window;
+		size++;
+	}
+
+	void setUncompressedLength(long uncompressedLength) {
+		this.uncompressedLength = uncompressedLength;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return total length of uncompressed data
+	 */
+	public long getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	public long getCompressedOffset(int i) {
+		checkIndex(i);
+		return compressedOffsets[i];
+	}
+
+	/**
+	 * @param i
+	 * @return number of bits of byte at compressed offset which belong to previous block, 0 to 7
+	 */
+	public int getBitOffset(int i) {
+		checkIndex(i);
+		return bitOffsets[i];
+	}
+
+	public long getUncompressedOffset(int i) {
+		checkIndex(i);
+		return uncompressedOffsets[i];
+	}
+
+	/**
+	 * @param i
+	 * @return dictionary for inflating from i-th checkpoint, or null if it is start of a member
+	 */
+	public byte[] getWindow(int i) {
+		checkIndex(i);
+		return windows[i];
+	}
+
+	/**
+	 * @param uncompressedOffset
+	 * @return position of last checkpoint at or before given uncompressed offset
+	 */
+	public int floorIndex(long uncompressedOffset) {
+		int i = Arrays.binarySearch(uncompressedOffsets, 0, size, uncompressedOffset);
+		if (i < 0) {
+			i = -(i + 1) - 1;
+		}
+		// several checkpoints can have same offset, e.g. empty members
+		while (i > 0 && uncompressedOffsets[i - 1] == uncompressedOffsets[i]) {
+			i--;
+		}
+		return Math.max(i, 0);
+	}
+
+	/**
+	 * @param gzipFile
+	 * @return sidecar file of given gzip file
+	 */
+	public static File sidecar(File gzipFile) {
+		return new File(gzipFile.getPath() + SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Writes checkpoints into provided stream. Windows are compressed.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeLong(uncompressedLength);
+		dos.writeInt(size);
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		Deflater def = pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+		byte[] buf = pool.borrowBuffer();
+		try {
+			for (int i = 0; i < size; i++) {
+				dos.writeLong(compressedOffsets[i]);
+				dos.writeByte(bitOffsets[i]);
+				dos.writeLong(uncompressedOffsets[i]);
+				if (windows[i] == null) {
+					dos.writeInt(-1);
+					continue;
+				}
+				def.reset();
+				def.setInput(windows[i]);
+				def.finish();
+				int len = 0;
+				while (!def.finished()) {
+					if (len == buf.length) {
+						buf = Arrays.copyOf(buf, buf.length * 2);
+					}
+					len += def.deflate(buf, len, buf.length - len);
+				}
+				dos.writeInt(windows[i].length);
+				dos.writeInt(len);
+				dos.write(buf, 0, len);
+			}
+		} finally {
+			pool.returnDeflater(def);
+			pool.returnBuffer(buf);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Reads checkpoints written by write method.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static CheckpointIndex read(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.readInt() != MAGIC) {
+			throw new ZipException("Not a gzip checkpoint index");
+		}
+		if (dis.readByte() > VERSION) {
+			throw new ZipException("Unsupported checkpoint index version");
+		}
+		CheckpointIndex index = new CheckpointIndex();
+		index.uncompressedLength = dis.readLong();
+		int count = dis.readInt();
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		Inflater inf = pool.borrowInflater();
+		byte[] deflated = pool.borrowBuffer();
+		try {
+			for (int i = 0; i < count; i++) {
+				long compressedOffset = dis.readLong();
+				int bitOffset = dis.readByte();
+				long uncompressedOffset = dis.readLong();
+				int windowLength = dis.readInt();
+				byte[] window = null;
+				if (windowLength >= 0) {
+					int deflatedLength = dis.readInt();
+					if (deflatedLength > deflated.length) {
+						deflated = new byte[deflatedLength];
+					}
+					dis.readFully(deflated, 0, deflatedLength);
+					window = new byte[windowLength];
+					inf.reset();
+					inf.setInput(deflated, 0, deflatedLength);
+					int len = 0;
+					while (len < windowLength && !inf.finished()) {
+						int n = inf.inflate(window, len, windowLength - len);
+						if (n == 0 && inf.needsInput()) {
+							break;
+						}
+						len += n;
+					}
+					if (len != windowLength) {
+						throw new ZipException("Corrupt checkpoint window");
+					}
+				}
+				index.add(compressedOffset, bitOffset, uncompressedOffset, window);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Corrupt checkpoint window");
+		} finally {
+			pool.returnInflater(inf);
+			pool.returnBuffer(deflated);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns bytes which let raw Inflater start at a block boundary which is not byte aligned. It
+	 * is an empty dynamic Huffman block whose length in bits is congruent to bitOffset modulo 8,
+	 * followed by remaining bits of byte at checkpoint. Its length is adjusted by number of code
+	 * length codes, 3 bits each. Rest of compressed data follows from next byte.
+	 * @param bitOffset number of bits of first byte which belong to previous block, 1 to 7
+	 * @param firstByte byte of compressed data at checkpoint
+	 * @return
+	 */
+	static byte[] alignmentPrefix(int bitOffset, int firstByte) {
+		int k = 5;
+		while ((3 * k - bitOffset) % 8 != 0) {
+			k++;
+		}
+		BitWriter w = new BitWriter();
+		w.bits(0, 1);      // not last block
+		w.bits(2, 2);      // dynamic Huffman codes
+		w.bits(0, 5);      // 257 literal/length codes
+		w.bits(0, 5);      // 1 distance code
+		w.bits(k - 4, 4);  // number of code length codes
+		// lengths of code length codes 16, 17, 18, 0, 8 and then zeros
+		int[] codeLengths = {1, 0, 0, 2, 2};
+		for (int i = 0; i < k; i++) {
+			w.bits(i < codeLengths.length ? codeLengths[i] : 0, 3);
+		}
+		// code length code is 16 -> 0, 0 -> 10, 8 -> 11
+		w.code(2, 2);      // literal 0 is not used
+		w.code(3, 2);      // literal 1 has length 8
+		for (int i = 0; i < 42; i++) {
+			w.code(0, 1);
+			w.bits(3, 2);  // repeat previous length 6 times
+		}
+		w.code(0, 1);
+		w.bits(0, 2);      // repeat previous length 3 times, till end of block code
+		w.code(2, 2);      // distance code is not used
+		w.code(255, 8);    // end of block
+		w.bits(firstByte >>> bitOffset, 8 - bitOffset);
+		return w.toByteArray();
+	}
+
+	/*
+	 * Writes bits in deflate order, i.e. starting from least significant bit of every byte.
+	 */
+	private static final class BitWriter {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int buf = 0;
+		private int count = 0;
+
+		void bits(int value, int n) {
+			for (int i = 0; i < n; i++) {
+				bit((value >>> i) & 1);
+			}
+		}
+
+		/*
+		 * Huffman codes are written starting from most significant bit.
+		 */
+		void code(int code, int n) {
+			for (int i = n - 1; i >= 0; i--) {
+				bit((code >>> i) & 1);
+			}
+		}
+
+		private void bit(int b) {
+			buf |= b << count;
+			if (++count == 8) {
+				out.write(buf);
+				buf = 0;
+				count = 0;
+			}
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates named daemon threads for pools owned by streams, so an unclosed stream does not keep
+ * JVM alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String name;
+
+	DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
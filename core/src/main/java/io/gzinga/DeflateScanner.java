@@ -0,0 +1,431 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This class decodes a gzip stream one deflate block at a time. Unlike Inflater it exposes bit
+ * position of every block boundary together with last 32 KB of uncompressed data at that point,
+ * which is what is needed to resume inflation at a block boundary later (see GZipIndexBuilder).
+ * Uncompressed data itself is not returned.
+ */
+final class DeflateScanner {
+
+	static final int WINDOW_SIZE = 32 * 1024;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int MAX_BITS = 15;
+
+	private final static int FHCRC      = 2;    // Header CRC
+	private final static int FEXTRA     = 4;    // Extra field
+	private final static int FNAME      = 8;    // File name
+	private final static int FCOMMENT   = 16;   // File comment
+
+	private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+			35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+	private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3,
+			3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+	private static final int[] DIST_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+			257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+	private static final int[] DIST_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8,
+			8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+	private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3,
+			13, 2, 14, 1, 15};
+
+	private static final int[] FIXED_LIT = new int[1 << 9];
+	private static final int[] FIXED_DIST = new int[1 << 5];
+	private static final int FIXED_LIT_BITS;
+	private static final int FIXED_DIST_BITS;
+
+	static {
+		byte[] lengths = new byte[288];
+		for (int i = 0; i < 288; i++) {
+			lengths[i] = (byte) (i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8);
+		}
+		byte[] dist = new byte[30];
+		for (int i = 0; i < 30; i++) {
+			dist[i] = 5;
+		}
+		try {
+			FIXED_LIT_BITS = build(lengths, 0, 288, FIXED_LIT);
+			FIXED_DIST_BITS = build(dist, 0, 30, FIXED_DIST);
+		} catch (ZipException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] buf = new byte[64 * 1024];
+	private int bufPos = 0;
+	private int bufLen = 0;
+	private long bytesRead = 0;
+
+	private long bitBuf = 0;
+	private int bitCnt = 0;
+	/*
+	 * Number of zero bits at top of bitBuf which were added past end of input.
+	 */
+	private int padBits = 0;
+
+	private final byte[] window = new byte[WINDOW_SIZE];
+	private long totalOut = 0;
+	private long memberOut = 0;
+
+	private final int[] litTable = new int[1 << MAX_BITS];
+	private final int[] distTable = new int[1 << MAX_BITS];
+	private final int[] codeLengthTable = new int[1 << 7];
+	private final byte[] lengths = new byte[320];
+
+	DeflateScanner(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return number of bits of input which are consumed
+	 */
+	long getBitPosition() {
+		return bytesRead * 8 - (bitCnt - padBits);
+	}
+
+	long getTotalOut() {
+		return totalOut;
+	}
+
+	long getMemberOut() {
+		return memberOut;
+	}
+
+	/**
+	 * @return last 32 KB (or less, at start of member) of uncompressed data of current member
+	 */
+	byte[] getWindow() {
+		int n = (int) Math.min(WINDOW_SIZE, memberOut);
+		byte[] w = new byte[n];
+		int start = (int) ((totalOut - n) & WINDOW_MASK);
+		int first = Math.min(n, WINDOW_SIZE - start);
+		System.arraycopy(window, start, w, 0, first);
+		System.arraycopy(window, 0, w, first, n - first);
+		return w;
+	}
+
+	/**
+	 * Reads member header. Returns false if there is no further member, i.e. at end of input or if
+	 * there is trailing garbage after first member.
+	 * @throws IOException
+	 */
+	boolean readHeader() throws IOException {
+		boolean first = bytesRead == 0;
+		int b0 = readByte();
+		if (b0 == -1 && !first) {
+			return false;
+		}
+		int b1 = readByte();
+		if (b0 != (GZIPInputStream.GZIP_MAGIC & 0xff) || b1 != (GZIPInputStream.GZIP_MAGIC >> 8)) {
+			if (first) {
+				throw new ZipException("Not in GZIP format");
+			}
+			return false;
+		}
+		if (readByte() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flg = readByte();
+		for (int i = 0; i < 6; i++) {
+			readRequiredByte();
+		}
+		if ((flg & FEXTRA) == FEXTRA) {
+			int xlen = readRequiredByte() | (readRequiredByte() << 8);
+			for (int i = 0; i < xlen; i++) {
+				readRequiredByte();
+			}
+		}
+		if ((flg & FNAME) == FNAME) {
+			while (readRequiredByte() != 0) {
+			}
+		}
+		if ((flg & FCOMMENT) == FCOMMENT) {
+			while (readRequiredByte() != 0) {
+			}
+		}
+		if ((flg & FHCRC) == FHCRC) {
+			readRequiredByte();
+			readRequiredByte();
+		}
+		memberOut = 0;
+		return true;
+	}
+
+	/**
+	 * Reads member trailer after last block and checks uncompressed size.
+	 * @throws IOException
+	 */
+	void readTrailer() throws IOException {
+		alignToByte();
+		for (int i = 0; i < 4; i++) {
+			readRequiredByte();
+		}
+		long size = 0;
+		for (int i = 0; i < 4; i++) {
+			size |= (long) readRequiredByte() << (8 * i);
+		}
+		if (size != (memberOut & 0xffffffffL)) {
+			throw new ZipException("Corrupt GZIP trailer: size mismatch");
+		}
+	}
+
+	/**
+	 * Decodes one deflate block.
+	 * @return true if it was last block of member
+	 * @throws IOException
+	 */
+	boolean inflateBlock() throws IOException {
+		int header = bits(3);
+		switch (header >>> 1) {
+		case 0:
+			stored();
+			break;
+		case 1:
+			codes(FIXED_LIT, FIXED_LIT_BITS, FIXED_DIST, FIXED_DIST_BITS);
+			break;
+		case 2:
+			dynamic();
+			break;
+		default:
+			throw new ZipException("Invalid block type");
+		}
+		return (header & 1) != 0;
+	}
+
+	private void stored() throws IOException {
+		alignToByte();
+		int len = bits(16);
+		int nlen = bits(16);
+		if (len != (~nlen & 0xffff)) {
+			throw new ZipException("Invalid stored block lengths");
+		}
+		for (int i = 0; i < len; i++) {
+			output((byte) readRequiredByte());
+		}
+	}
+
+	private void dynamic() throws IOException {
+		int nlen = bits(5) + 257;
+		int ndist = bits(5) + 1;
+		int ncode = bits(4) + 4;
+		if (nlen > 286 || ndist > 30) {
+			throw new ZipException("Invalid code lengths");
+		}
+		for (int i = 0; i < 19; i++) {
+			lengths[i] = 0;
+		}
+		for (int i = 0; i < ncode; i++) {
+			lengths[CODE_LENGTH_ORDER[i]] = (byte) bits(3);
+		}
+		int codeLengthBits = build(lengths, 0, 19, codeLengthTable);
+		int i = 0;
+		while (i < nlen + ndist) {
+			int sym = decode(codeLengthTable, codeLengthBits);
+			if (sym < 16) {
+				lengths[i++] = (byte) sym;
+				continue;
+			}
+			int len = 0;
+			int repeat;
+			if (sym == 16) {
+				if (i == 0) {
+					throw new ZipException("Invalid bit length repeat");
+				}
+				len = lengths[i - 1];
+				repeat = 3 + bits(2);
+			} else if (sym == 17) {
+				repeat = 3 + bits(3);
+			} else {
+				repeat = 11 + bits(7);
+			}
+			if (i + repeat > nlen + ndist) {
+				throw new ZipException("Invalid bit length repeat");
+			}
+			while (repeat-- > 0) {
+				lengths[i++] = (byte) len;
+			}
+		}
+		if (lengths[256] == 0) {
+			throw new ZipException("Missing end-of-block code");
+		}
+		int litBits = build(lengths, 0, nlen, litTable);
+		int distBits = build(lengths, nlen, ndist, distTable);
+		codes(litTable, litBits, distTable, distBits);
+	}
+
+	private void codes(int[] lit, int litBits, int[] dist, int distBits) throws IOException {
+		while (true) {
+			int sym = decode(lit, litBits);
+			if (sym < 256) {
+				output((byte) sym);
+			} else if (sym == 256) {
+				return;
+			} else {
+				sym -= 257;
+				if (sym >= 29) {
+					throw new ZipException("Invalid literal/length code");
+				}
+				int len = LENGTH_BASE[sym] + bits(LENGTH_EXTRA[sym]);
+				int dsym = decode(dist, distBits);
+				if (dsym >= 30) {
+					throw new ZipException("Invalid distance code");
+				}
+				int distance = DIST_BASE[dsym] + bits(DIST_EXTRA[dsym]);
+				if (distance > memberOut) {
+					throw new ZipException("Invalid distance too far back");
+				}
+				for (int i = 0; i < len; i++) {
+					output(window[(int) ((totalOut - distance) & WINDOW_MASK)]);
+				}
+			}
+		}
+	}
+
+	private void output(byte b) {
+		window[(int) (totalOut & WINDOW_MASK)] = b;
+		totalOut++;
+		memberOut++;
+	}
+
+	/*
+	 * Builds lookup table indexed by next bits of input (in reverse code order) for canonical
+	 * Huffman code with given code lengths. Entries are symbol << 4 | code length, or -1 for bits
+	 * which are not a code. Returns number of bits used for lookup.
+	 */
+	private static int build(byte[] lengths, int off, int n, int[] table) throws ZipException {
+		int[] count = new int[MAX_BITS + 1];
+		int max = 0;
+		for (int i = 0; i < n; i++) {
+			count[lengths[off + i]]++;
+			max = Math.max(max, lengths[off + i]);
+		}
+		count[0] = 0;
+		int left = 1;
+		for (int len = 1; len <= MAX_BITS; len++) {
+			left <<= 1;
+			left -= count[len];
+			if (left < 0) {
+				throw new ZipException("Over-subscribed Huffman code");
+			}
+		}
+		int[] next = new int[MAX_BITS + 2];
+		int code = 0;
+		for (int len = 1; len <= MAX_BITS; len++) {
+			code = (code + count[len - 1]) << 1;
+			next[len] = code;
+		}
+		int size = 1 << max;
+		for (int i = 0; i < size; i++) {
+			table[i] = -1;
+		}
+		for (int sym = 0; sym < n; sym++) {
+			int len = lengths[off + sym];
+			if (len == 0) {
+				continue;
+			}
+			int reversed = Integer.reverse(next[len]++) >>> (32 - len);
+			for (int i = reversed; i < size; i += 1 << len) {
+				table[i] = (sym << 4) | len;
+			}
+		}
+		return max;
+	}
+
+	private int decode(int[] table, int tableBits) throws IOException {
+		need(tableBits);
+		int entry = table[(int) (bitBuf & ((1 << tableBits) - 1))];
+		if (entry < 0) {
+			throw new ZipException("Invalid Huffman code");
+		}
+		drop(entry & 15);
+		return entry >>> 4;
+	}
+
+	private int bits(int n) throws IOException {
+		need(n);
+		int v = (int) (bitBuf & ((1L << n) - 1));
+		drop(n);
+		return v;
+	}
+
+	private void need(int n) throws IOException {
+		while (bitCnt < n) {
+			int b = nextByte();
+			if (b == -1) {
+				b = 0;
+				padBits += 8;
+			}
+			bitBuf |= (long) b << bitCnt;
+			bitCnt += 8;
+		}
+	}
+
+	private void drop(int n) throws ZipException {
+		bitBuf >>>= n;
+		bitCnt -= n;
+		if (bitCnt < padBits) {
+			throw new ZipException("Unexpected end of deflate stream");
+		}
+	}
+
+	private void alignToByte() throws ZipException {
+		drop((bitCnt - padBits) & 7);
+	}
+
+	/*
+	 * Reads next byte at byte aligned position, or returns -1 at end of input.
+	 */
+	private int readByte() throws IOException {
+		if (bitCnt - padBits >= 8) {
+			return bits(8);
+		}
+		if (padBits > 0) {
+			return -1;
+		}
+		bitBuf = 0;
+		bitCnt = 0;
+		return nextByte();
+	}
+
+	private int readRequiredByte() throws IOException {
+		int b = readByte();
+		if (b == -1) {
+			throw new ZipException("Unexpected end of GZIP stream");
+		}
+		return b;
+	}
+
+	private int nextByte() throws IOException {
+		if (bufPos == bufLen) {
+			bufLen = in.read(buf, 0, buf.length);
+			bufPos = 0;
+			if (bufLen <= 0) {
+				bufLen = 0;
+				return -1;
+			}
+		}
+		bytesRead++;
+		return buf[bufPos++] & 0xff;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * This class reads an ordinary gzip file from any uncompressed position using its CheckpointIndex.
+ * Reader starts at last checkpoint before position and skips rest. At a checkpoint inside a member,
+ * raw Inflater is primed with window of checkpoint as dictionary (and an empty block, if checkpoint
+ * is not byte aligned) and rest of that member is inflated directly, after which following members
+ * are read by GZipMemberInputStream. CRC of a member which is read from inside can not be verified.
+ */
+public class GZipCheckpointInputStream extends InputStream {
+
+	private static final int TRAILER_SIZE = 8;
+
+	private final SeekableInputStream in;
+	private final CheckpointIndex index;
+	private final GZipMemberInputStream members;
+	private final GZipResourcePool pool = GZipResourcePool.getShared();
+	private final Inflater inf = pool.borrowInflater();
+	private final byte[] input = pool.borrowBuffer();
+	private final byte[] single = new byte[1];
+	private byte[] scratch;
+	private long inputStart;
+	private int inputLen;
+	/*
+	 * True while rest of a member is inflated from a checkpoint inside it.
+	 */
+	private boolean partial = false;
+	private long position = 0;
+	private boolean closed = false;
+
+	public GZipCheckpointInputStream(SeekableInputStream in, CheckpointIndex index) throws IOException {
+		this.in = in;
+		this.index = index;
+		this.members = new GZipMemberInputStream(in);
+		seek(0);
+	}
+
+	/**
+	 * Opens given file with checkpoints from its sidecar file.
+	 * @param gzipFile
+	 * @throws IOException
+	 */
+	public GZipCheckpointInputStream(File gzipFile) throws IOException {
+		this(new SeekableRandomAccessFile(gzipFile), readSidecar(gzipFile));
+	}
+
+	private static CheckpointIndex readSidecar(File gzipFile) throws IOException {
+		InputStream in = new FileInputStream(CheckpointIndex.sidecar(gzipFile));
+		try {
+			return CheckpointIndex.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public CheckpointIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return position in uncompressed data
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Moves reader to given position in uncompressed data.
+	 * @param pos
+	 * @throws IOException
+	 */
+	public void seek(long pos) throws IOException {
+		ensureOpen();
+		if (pos < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		int i = index.floorIndex(pos);
+		long offset = index.getCompressedOffset(i);
+		byte[] window = index.getWindow(i);
+		if (window == null) {
+			partial = false;
+			members.seek(offset);
+		} else {
+			partial = true;
+			inf.reset();
+			if (window.length > 0) {
+				inf.setDictionary(window);
+			}
+			int bitOffset = index.getBitOffset(i);
+			if (bitOffset != 0) {
+				in.seek(offset);
+				int b = in.read();
+				if (b == -1) {
+					throw new ZipException("Unexpected end of gzip member");
+				}
+				inf.setInput(CheckpointIndex.alignmentPrefix(bitOffset, b));
+				offset++;
+			}
+			in.seek(offset);
+			inputStart = offset;
+			inputLen = 0;
+		}
+		position = index.getUncompressedOffset(i);
+		long n = pos - position;
+		if (skip(n) < n) {
+			throw new IOException("Position beyond end of file");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > buf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (partial) {
+			int n;
+			try {
+				n = inf.inflate(buf, off, len);
+			} catch (DataFormatException e) {
+				String s = e.getMessage();
+				throw new ZipException(s != null ? s : "Invalid ZLIB data format");
+			}
+			if (n > 0) {
+				position += n;
+				return n;
+			}
+			if (inf.finished()) {
+				partial = false;
+				long end = inputStart + inputLen - inf.getRemaining() + TRAILER_SIZE;
+				members.seekAfterMember(end);
+			} else if (inf.needsInput()) {
+				inputStart += inputLen;
+				inputLen = in.read(input, 0, input.length);
+				if (inputLen <= 0) {
+					throw new ZipException("Unexpected end of gzip member");
+				}
+				inf.setInput(input, 0, inputLen);
+			} else if (inf.needsDictionary()) {
+				throw new ZipException("Unexpected preset dictionary in gzip member");
+			}
+		}
+		int n = members.read(buf, off, len);
+		if (n > 0) {
+			position += n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		if (scratch == null) {
+			scratch = pool.borrowBuffer();
+		}
+		long skipped = 0;
+		while (skipped < n) {
+			int len = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+			if (len == -1) {
+				break;
+			}
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			pool.returnInflater(inf);
+			pool.returnBuffer(input);
+			pool.returnBuffer(scratch);
+			members.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
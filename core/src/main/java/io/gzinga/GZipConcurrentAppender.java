@@ -0,0 +1,450 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class lets many threads append records into one random access gzip file without a common
+ * lock. Every thread appends into its own staging buffer, which is sealed into a complete gzip member
+ * by same thread once it reaches member size, so threads also compress in parallel. Sealed members
+ * get a sequence number from an atomic counter and are published into a ring buffer, from which a
+ * single I/O thread writes them in sequence order and assigns their byte offsets. Staging buffer is
+ * shared only with thread calling addOffset, flush or close, through a compare-and-set flag.
+ *
+ * A record is never split across members. Records of one thread are written in order in which they
+ * were appended, records of different threads are interleaved by member. addOffset(key) seals all
+ * staging buffers, so key points to first member after all records appended before it. Appending
+ * concurrently with close is not supported.
+ *
+ * Output has same format as of GZipOutputStreamRandomAccess, so it can be read with
+ * GZipInputStreamRandomAccess as well as with any gzip reader.
+ */
+public class GZipConcurrentAppender implements Closeable, Flushable {
+
+	public static final int DEFAULT_MEMBER_SIZE = 256 * 1024;
+	public static final int DEFAULT_RING_SIZE = 64;
+
+	private static final long PARK_NANOS = 50 * 1000;
+
+	private final OutputStream out;
+	private final int memberSize;
+	private final GZipWriterConfig config;
+	private final AtomicReferenceArray<Member> ring;
+	private final int mask;
+	/*
+	 * Next sequence number to assign, and number of members written by I/O thread.
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final CopyOnWriteArrayList<Stripe> stripes = new CopyOnWriteArrayList<Stripe>();
+	private final ThreadLocal<Stripe> localStripe = new ThreadLocal<Stripe>() {
+		@Override
+		protected Stripe initialValue() {
+			Stripe s = new Stripe();
+			stripes.add(s);
+			return s;
+		}
+	};
+	private final Thread writer;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile boolean closing = false;
+	private volatile IOException failure;
+
+	/*
+	 * Following are used by I/O thread only, and by close once I/O thread has ended.
+	 */
+	private final OffsetIndex offsetIndex = new OffsetIndex();
+	private long totalLength = 0;
+	private long uncompressedLength = 0;
+
+	public GZipConcurrentAppender(OutputStream out) {
+		this(out, DEFAULT_MEMBER_SIZE, DEFAULT_RING_SIZE);
+	}
+
+	public GZipConcurrentAppender(File gzipFile) throws IOException {
+		this(new FileOutputStream(gzipFile));
+	}
+
+	/**
+	 * @param out the output stream
+	 * @param memberSize number of uncompressed bytes after which staging buffer is sealed into member
+	 * @param ringSize maximum number of sealed members waiting to be written, rounded up to a power
+	 * of 2. Threads which seal further members wait till I/O thread catches up.
+	 */
+	public GZipConcurrentAppender(OutputStream out, int memberSize, int ringSize) {
+		this(out, memberSize, ringSize, new GZipWriterConfig());
+	}
+
+	/**
+	 * Creates appender with compression settings of given configuration. If adaptive is set, members
+	 * which are sealed while ring is full are compressed with minLevel.
+	 * @param out the output stream
+	 * @param memberSize number of uncompressed bytes after which staging buffer is sealed into member
+	 * @param ringSize maximum number of sealed members waiting to be written
+	 * @param config compression settings
+	 */
+	public GZipConcurrentAppender(OutputStream out, int memberSize, int ringSize, GZipWriterConfig config) {
+		if (memberSize <= 0 || ringSize <= 0 || ringSize > 1 << 30) {
+			throw new IllegalArgumentException("Member size and ring size should be greater than 0");
+		}
+		this.out = out;
+		this.memberSize = memberSize;
+		this.config = config.copy();
+		int size = Integer.highestOneBit(ringSize);
+		if (size < ringSize) {
+			size <<= 1;
+		}
+		this.ring = new AtomicReferenceArray<Member>(size);
+		this.mask = size - 1;
+		this.writer = new DaemonThreadFactory("gzinga-appender").newThread(new Runnable() {
+			@Override
+			public void run() {
+				writeMembers();
+			}
+		});
+		writer.start();
+	}
+
+	public void append(byte[] record) throws IOException {
+		append(record, 0, record.length);
+	}
+
+	/**
+	 * Appends a record into staging buffer of calling thread. Record is kept whole in one member.
+	 * @param record
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void append(byte[] record, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > record.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		Stripe s = localStripe.get();
+		Sealed sealed = null;
+		s.acquire();
+		try {
+			if (s.len + len > s.buf.length) {
+				s.buf = Arrays.copyOf(s.buf, Math.max(s.buf.length * 2, s.len + len));
+			}
+			System.arraycopy(record, off, s.buf, s.len, len);
+			s.len += len;
+			if (s.len >= memberSize) {
+				sealed = seal(s);
+			}
+		} finally {
+			s.release();
+		}
+		if (sealed != null) {
+			publish(sealed);
+		}
+	}
+
+	/**
+	 * Seals staging buffers of all threads and inserts entry into metadata for specified key with
+	 * byte location of member which follows them.
+	 * @param key
+	 * @throws IOException
+	 */
+	public void addOffset(Long key) throws IOException {
+		ensureOpen();
+		publishAll(sealAll(new Member(key, false)));
+	}
+
+	/**
+	 * Seals staging buffers of all threads and waits till they are written and underlying stream is
+	 * flushed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		List<Sealed> sealed = sealAll(new Member(null, true));
+		publishAll(sealed);
+		await(sealed.get(sealed.size() - 1).seq + 1);
+	}
+
+	/**
+	 * Writes remaining records, metadata information at end of file and closes underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			publishAll(sealAll(null));
+			closing = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while closing appender");
+			}
+			checkFailure();
+			if (totalLength == 0) {
+				// file should start with a member, so that it is recognized as random access file
+				byte[] empty = deflate(new byte[0], 0, config.getLevel());
+				out.write(empty);
+				totalLength += empty.length;
+			}
+			offsetIndex.setUncompressedLength(uncompressedLength);
+			totalLength += IndexFooter.write(out, totalLength, offsetIndex);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Seals staging buffer of stripe which is held by calling thread. Sequence number is assigned
+	 * while stripe is held, so members of one thread keep their order.
+	 */
+	private Sealed seal(Stripe s) {
+		Sealed sealed = new Sealed(sequence.getAndIncrement(), s.buf, s.len, null);
+		s.buf = new byte[memberSize];
+		s.len = 0;
+		return sealed;
+	}
+
+	/*
+	 * Seals all non empty staging buffers, followed by given marker if it is not null.
+	 */
+	private List<Sealed> sealAll(Member marker) {
+		List<Sealed> sealed = new ArrayList<Sealed>();
+		Object[] snapshot = stripes.toArray();
+		for (Object s : snapshot) {
+			((Stripe) s).acquire();
+		}
+		try {
+			for (Object o : snapshot) {
+				Stripe s = (Stripe) o;
+				if (s.len > 0) {
+					sealed.add(seal(s));
+				}
+			}
+			if (marker != null) {
+				sealed.add(new Sealed(sequence.getAndIncrement(), null, 0, marker));
+			}
+		} finally {
+			for (Object s : snapshot) {
+				((Stripe) s).release();
+			}
+		}
+		return sealed;
+	}
+
+	private void publishAll(List<Sealed> sealed) throws IOException {
+		for (Sealed s : sealed) {
+			publish(s);
+		}
+	}
+
+	/*
+	 * Compresses sealed buffer and puts it into its slot of ring, once I/O thread has written member
+	 * which used that slot before.
+	 */
+	private void publish(Sealed s) throws IOException {
+		Member m = s.marker;
+		if (m == null) {
+			int level = config.levelFor(s.seq - written.get() >= ring.length());
+			m = new Member(deflate(s.buf, s.len, level), s.len);
+		}
+		while (s.seq - written.get() >= ring.length()) {
+			checkFailure();
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		ring.set((int) (s.seq & mask), m);
+		LockSupport.unpark(writer);
+	}
+
+	private void await(long seq) throws IOException {
+		while (written.get() < seq) {
+			checkFailure();
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		checkFailure();
+	}
+
+	/*
+	 * Body of I/O thread. Writes members in order of their sequence numbers till appender is closed
+	 * and every assigned sequence number is written.
+	 */
+	private void writeMembers() {
+		long seq = 0;
+		try {
+			while (true) {
+				int i = (int) (seq & mask);
+				Member m = ring.get(i);
+				if (m == null) {
+					if (closing && seq == sequence.get()) {
+						return;
+					}
+					LockSupport.parkNanos(this, PARK_NANOS * 20);
+					continue;
+				}
+				ring.set(i, null);
+				if (m.data != null) {
+					out.write(m.data);
+					totalLength += m.data.length;
+					uncompressedLength += m.size;
+				} else if (m.key != null) {
+					offsetIndex.put(m.key, totalLength, uncompressedLength);
+				}
+				if (m.flush) {
+					out.flush();
+				}
+				written.set(++seq);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException("Error in writing members", e);
+		}
+	}
+
+	/*
+	 * Compresses buffer into a complete member with header and trailer.
+	 */
+	private byte[] deflate(byte[] buf, int len, int level) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 3 + 64);
+		GZipOutputStreamRandomAccess.writeHeader(bos);
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		Deflater def = config.newDeflater(level);
+		byte[] out = pool.borrowBuffer();
+		try {
+			def.setInput(buf, 0, len);
+			def.finish();
+			while (!def.finished()) {
+				int n = def.deflate(out, 0, out.length);
+				bos.write(out, 0, n);
+			}
+		} finally {
+			pool.returnDeflater(def);
+			pool.returnBuffer(out);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf, 0, len);
+		writeInt((int) crc.getValue(), bos);
+		writeInt(len, bos);
+		return bos.toByteArray();
+	}
+
+	/*
+	 * Writes integer in Intel byte order.
+	 */
+	private static void writeInt(int i, ByteArrayOutputStream out) {
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed.get()) {
+			throw new IOException("Stream closed");
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw new IOException("Error in writing members", e);
+		}
+	}
+
+	/*
+	 * Staging buffer of one thread.
+	 */
+	private final class Stripe {
+		final AtomicBoolean busy = new AtomicBoolean();
+		byte[] buf = new byte[memberSize];
+		int len = 0;
+
+		void acquire() {
+			while (!busy.compareAndSet(false, true)) {
+				Thread.yield();
+			}
+		}
+
+		void release() {
+			busy.set(false);
+		}
+	}
+
+	/*
+	 * Sealed staging buffer or marker with its sequence number.
+	 */
+	private static final class Sealed {
+		final long seq;
+		final byte[] buf;
+		final int len;
+		final Member marker;
+
+		Sealed(long seq, byte[] buf, int len, Member marker) {
+			this.seq = seq;
+			this.buf = buf;
+			this.len = len;
+			this.marker = marker;
+		}
+	}
+
+	/*
+	 * Entry of ring buffer, i.e. a compressed member, or a marker which inserts key at current
+	 * location or flushes underlying stream.
+	 */
+	private static final class Member {
+		final byte[] data;
+		final long size;
+		final Long key;
+		final boolean flush;
+
+		Member(byte[] data, long size) {
+			this.data = data;
+			this.size = size;
+			this.key = null;
+			this.flush = false;
+		}
+
+		Member(Long key, boolean flush) {
+			this.data = null;
+			this.size = 0;
+			this.key = key;
+			this.flush = flush;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class builds CheckpointIndex of an ordinary gzip file, i.e. a file not written by
+ * GZipOutputStreamRandomAccess, in one streaming pass. File is decoded with DeflateScanner and a
+ * checkpoint is recorded at first member start or deflate block boundary after every spacing bytes
+ * of uncompressed data. GZipCheckpointInputStream can then read file from any checkpoint.
+ *
+ * Usage: java io.gzinga.GZipIndexBuilder file.gz [spacing in MB], which writes file.gz.gzidx
+ */
+public class GZipIndexBuilder {
+
+	public static final long DEFAULT_SPACING = 1024 * 1024;
+
+	private GZipIndexBuilder() {
+	}
+
+	/**
+	 * Builds checkpoints of gzip stream.
+	 * @param in compressed stream, read till end
+	 * @param spacing minimum number of uncompressed bytes between checkpoints
+	 * @return
+	 * @throws IOException
+	 */
+	public static CheckpointIndex build(InputStream in, long spacing) throws IOException {
+		if (spacing <= 0) {
+			throw new IllegalArgumentException("Spacing <= 0");
+		}
+		CheckpointIndex index = new CheckpointIndex();
+		DeflateScanner scanner = new DeflateScanner(in);
+		long last = -spacing;
+		while (true) {
+			long memberStart = scanner.getBitPosition() / 8;
+			if (!scanner.readHeader()) {
+				break;
+			}
+			if (scanner.getTotalOut() - last >= spacing) {
+				last = scanner.getTotalOut();
+				index.add(memberStart, 0, last, null);
+			}
+			while (!scanner.inflateBlock()) {
+				if (scanner.getTotalOut() - last >= spacing) {
+					last = scanner.getTotalOut();
+					long bit = scanner.getBitPosition();
+					index.add(bit / 8, (int) (bit % 8), last, scanner.getWindow());
+				}
+			}
+			scanner.readTrailer();
+		}
+		index.setUncompressedLength(scanner.getTotalOut());
+		return index;
+	}
+
+	/**
+	 * Builds checkpoints of given file and writes them into its sidecar file.
+	 * @param gzipFile
+	 * @param spacing minimum number of uncompressed bytes between checkpoints
+	 * @return
+	 * @throws IOException
+	 */
+	public static CheckpointIndex build(File gzipFile, long spacing) throws IOException {
+		CheckpointIndex index;
+		InputStream in = new FileInputStream(gzipFile);
+		try {
+			index = build(in, spacing);
+		} finally {
+			in.close();
+		}
+		OutputStream out = new FileOutputStream(CheckpointIndex.sidecar(gzipFile));
+		try {
+			index.write(out);
+		} finally {
+			out.close();
+		}
+		return index;
+	}
+
+	public static void main(String[] args) throws Exception {
+		long spacing = args.length > 1 ? Long.parseLong(args[1]) * 1024 * 1024 : DEFAULT_SPACING;
+		CheckpointIndex index = build(new File(args[0]), spacing);
+		System.out.println(index.size() + " checkpoints written to "
+				+ CheckpointIndex.sidecar(new File(args[0])));
+	}
+}
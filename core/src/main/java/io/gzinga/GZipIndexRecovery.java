@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.StringTokenizer;
+import java.util.zip.ZipException;
+
+/**
+ * This class rebuilds metadata information of a file whose writer died before stream was closed,
+ * so metadata was never written at end of file.
+ *
+ * Writers with a checkpoint interval (see GZipWriterConfig) write checkpoints of metadata in between
+ * data members, and keep key of every member in its header comment. Recovery finds last complete
+ * checkpoint by scanning backwards from end of file, follows chain of checkpoints to collect keys
+ * written before it, and inflates only members after it. Keys of those members are taken from
+ * their headers, and last member is dropped if it is cut off by end of file. So cost of recovery is
+ * bounded by checkpoint interval instead of size of file. Files without any checkpoint are inflated
+ * from start. Any other damage of inflated members (e.g. CRC mismatch) fails recovery, since data
+ * after it would otherwise be thrown away.
+ *
+ * Keys of named dimensions added after last checkpoint can not be recovered.
+ */
+public final class GZipIndexRecovery {
+
+	private static final int MAX_HEADER_SIZE = 1024;
+	private static final int HEADER_SIZE = 10;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private GZipIndexRecovery() {
+	}
+
+	/**
+	 * Rebuilds metadata information of given file. If file is complete, then its metadata is
+	 * returned as it is. Data length of returned metadata is end of last complete data member.
+	 * @param in
+	 * @return
+	 * @throws ZipException if a member after last checkpoint is damaged and not only incomplete
+	 * @throws IOException
+	 */
+	public static OffsetIndex recover(SeekableInputStream in) throws IOException {
+		try {
+			OffsetIndex footer = IndexFooter.read(in);
+			if (footer != null) {
+				return footer;
+			}
+		} catch (ZipException e) {
+			// metadata at end of file is damaged, recover as if there was none
+		}
+		long len = in.getLen();
+		OffsetIndex index = null;
+		long start = 0;
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		byte[] buf = pool.borrowBuffer();
+		try {
+			long end = len;
+			while (index == null && end > 0) {
+				long from = Math.max(0, end - buf.length);
+				int n = (int) (end - from);
+				readFully(in, from, buf, n);
+				for (int i = n - IndexFooter.LOCATOR_SIZE; i >= 0 && index == null; i--) {
+					if (IndexFooter.isLocator(buf, i, n)) {
+						index = readCheckpoint(in, from + i);
+						start = from + i + IndexFooter.LOCATOR_SIZE;
+					}
+				}
+				// candidates which start in this window but end after it were checked in previous one
+				end = from == 0 ? 0 : from + IndexFooter.LOCATOR_SIZE - 1;
+			}
+		} finally {
+			pool.returnBuffer(buf);
+		}
+		if (index == null) {
+			index = new OffsetIndex();
+			index.setUncompressedLength(0);
+			start = 0;
+		}
+		recoverMembers(in, start, index);
+		return index;
+	}
+
+	/**
+	 * Rebuilds metadata information of given file and writes it at end of file, after cutting off
+	 * incomplete last member. Afterwards file can be read with random access and appended to. File is
+	 * not changed if recovery fails.
+	 * @param gzipFile
+	 * @return metadata information
+	 * @throws ZipException if a member after last checkpoint is damaged and not only incomplete
+	 * @throws IOException
+	 */
+	public static OffsetIndex repair(File gzipFile) throws IOException {
+		OffsetIndex index;
+		SeekableRandomAccessFile in = new SeekableRandomAccessFile(gzipFile);
+		try {
+			index = recover(in);
+		} finally {
+			in.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(gzipFile, "rw");
+		try {
+			raf.setLength(index.getDataLength());
+		} finally {
+			raf.close();
+		}
+		FileOutputStream out = new FileOutputStream(gzipFile, true);
+		try {
+			IndexFooter.write(out, index.getDataLength(), index);
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		return index;
+	}
+
+	/*
+	 * Returns metadata up to checkpoint whose locator is at given location, or null if it is not
+	 * a valid locator.
+	 */
+	private static OffsetIndex readCheckpoint(SeekableInputStream in, long locator) {
+		try {
+			return IndexFooter.readAt(in, locator);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Inflates members starting at given location and adds keys from their headers. Sets data
+	 * length and uncompressed length of index to end of last complete member.
+	 */
+	private static void recoverMembers(SeekableInputStream in, long start, OffsetIndex index)
+			throws IOException {
+		long uncompressed = index.getUncompressedLength();
+		SeekableCursor cursor = new SeekableCursor(in);
+		cursor.seek(start);
+		GZipMemberInputStream gzin = new GZipMemberInputStream(cursor);
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		byte[] buf = pool.borrowBuffer();
+		byte[] header = new byte[MAX_HEADER_SIZE];
+		long end;
+		boolean truncated = false;
+		long member = -1;
+		long memberUncompressed = uncompressed;
+		// keys of member being read, which are added once member is complete
+		OffsetIndex pending = new OffsetIndex();
+		try {
+			int len;
+			// every read returns data of one member only
+			while ((len = gzin.read(buf, 0, buf.length)) != -1) {
+				if (gzin.getMemberStart() != member) {
+					index.putAll(pending);
+					pending = new OffsetIndex();
+					member = gzin.getMemberStart();
+					memberUncompressed = uncompressed;
+					addKeys(in, member, memberUncompressed, header, pending);
+				}
+				uncompressed += len;
+			}
+			index.putAll(pending);
+			end = gzin.getMemberStart();
+		} catch (IOException e) {
+			if (!isTruncated(e, cursor, in)) {
+				ZipException damaged = new ZipException("Damaged member at " + gzin.getMemberStart()
+						+ ": " + e.getMessage());
+				damaged.initCause(e);
+				throw damaged;
+			}
+			// member which is being read is incomplete
+			truncated = true;
+			end = gzin.getMemberStart();
+			if (end == member) {
+				uncompressed = memberUncompressed;
+			} else {
+				index.putAll(pending);
+			}
+		} finally {
+			pool.returnBuffer(buf);
+			gzin.close();
+		}
+		// reader stops at anything which is not a member header, which is damage unless it is shorter
+		// than a header and so may be an incomplete one
+		if (!truncated && in.getLen() - end >= HEADER_SIZE) {
+			throw new ZipException("Damaged member at " + end + ": not a member header");
+		}
+		index.setDataLength(end);
+		index.setUncompressedLength(uncompressed);
+	}
+
+	/*
+	 * Returns true if given error of GZipMemberInputStream means that member was cut off by end of
+	 * file, as it is when writer dies, and not that it is damaged.
+	 */
+	private static boolean isTruncated(IOException e, SeekableCursor cursor, SeekableInputStream in)
+			throws IOException {
+		String message = e.getMessage();
+		boolean truncated = e instanceof EOFException || (e instanceof ZipException && message != null
+				&& (message.startsWith("Unexpected end") || message.startsWith("Truncated")));
+		return truncated && cursor.getPos() >= in.getLen();
+	}
+
+	/*
+	 * Adds keys stored as "key:offset;" in comment of header of member at given location. Only
+	 * keys whose offset is that of member are taken.
+	 */
+	private static void addKeys(SeekableInputStream in, long member, long uncompressed, byte[] header,
+			OffsetIndex index) throws IOException {
+		int n = 0;
+		while (n < header.length) {
+			int r = in.read(member + n, header, n, header.length - n);
+			if (r == -1) {
+				break;
+			}
+			n += r;
+		}
+		String comment = comment(header, n);
+		if (comment == null) {
+			return;
+		}
+		StringTokenizer stk = new StringTokenizer(comment, ";");
+		while (stk.hasMoreTokens()) {
+			String token = stk.nextToken();
+			int i = token.indexOf(':');
+			if (i == -1) {
+				continue;
+			}
+			try {
+				long key = Long.parseLong(token.substring(0, i));
+				if (Long.parseLong(token.substring(i + 1)) == member) {
+					index.put(key, member, uncompressed);
+				}
+			} catch (NumberFormatException e) {
+				// not a key written by GZipOutputStreamRandomAccess
+			}
+		}
+	}
+
+	/*
+	 * Returns comment of gzip header in given bytes, or null if it has none.
+	 */
+	private static String comment(byte[] header, int len) {
+		if (len < 10 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+			return null;
+		}
+		int flg = header[3] & 0xff;
+		int p = 10;
+		if ((flg & FEXTRA) != 0) {
+			if (p + 2 > len) {
+				return null;
+			}
+			p += 2 + ((header[p] & 0xff) | ((header[p + 1] & 0xff) << 8));
+		}
+		if ((flg & FNAME) != 0) {
+			while (p < len && header[p] != 0) {
+				p++;
+			}
+			p++;
+		}
+		if ((flg & FCOMMENT) == 0) {
+			return null;
+		}
+		int from = p;
+		while (p < len && header[p] != 0) {
+			p++;
+		}
+		if (p >= len) {
+			return null;
+		}
+		return new String(header, from, p - from, ASCII);
+	}
+
+	private static void readFully(SeekableInputStream in, long position, byte[] buf, int len)
+			throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = in.read(position + n, buf, n, len - n);
+			if (r == -1) {
+				throw new ZipException("Unexpected end of file at " + (position + n));
+			}
+			n += r;
+		}
+	}
+}
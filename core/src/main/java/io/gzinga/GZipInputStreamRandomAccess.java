@@ -16,16 +16,14 @@
 
 package io.gzinga;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.CheckedInputStream;
-import java.util.zip.ZipException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
 
@@ -35,13 +33,24 @@ import java.util.zip.GZIPInputStream;
  * Depending upon which key needs to be accessed, first random access to specified byte location will be performed
  * and then compressed stream will be read. 
  *
+ * Members are inflated by GZipMemberInputStream directly from a large buffer of compressed bytes, so
+ * jumping to a key discards only that buffer and reader can jump again after end of file is reached.
+ *
+ * If metadata has uncompressed offsets of members (see OffsetIndex), reader can also seek to a
+ * position in uncompressed data, and skip jumps over whole members instead of inflating them.
+ *
+ * Reader of a key range (see openRange) reads only members which cover that range. Keys can belong to
+ * default dimension or to named dimensions added by GZipOutputStreamRandomAccess.addKey.
+ *
  */
 public class GZipInputStreamRandomAccess  extends GZIPInputStream {
 
-    private final static int FHCRC      = 2;    // Header CRC
-    private final static int FEXTRA     = 4;    // Extra field
-    private final static int FNAME      = 8;    // File name
-    private final static int FCOMMENT   = 16;   // File comment
+	private final GZipMemberInputStream engine;
+	private final boolean uncompressedIndex;
+	/*
+	 * Position in uncompressed data, or -1 if it is not known.
+	 */
+	private long position;
 
 	/**
 	 * Input stream object should be of type SeekableInputStream. User also needs to provide Class
@@ -64,7 +73,21 @@ public class GZipInputStreamRandomAccess  extends GZIPInputStream {
      * @throws IOException
      */
 	public GZipInputStreamRandomAccess(SeekableInputStream is, boolean loadMetadata) throws IOException {
-		super(new InputStreamConverter(is, loadMetadata));
+		this(new InputStreamConverter(is, loadMetadata));
+	}
+
+	private GZipInputStreamRandomAccess(InputStreamConverter converter) throws IOException {
+		this(converter, converter.getPos());
+	}
+
+	private GZipInputStreamRandomAccess(InputStreamConverter converter, long start) throws IOException {
+		super(converter);
+		// GZIPInputStream has validated first header, rest of reading is done by engine
+		inf.end();
+		engine = new GZipMemberInputStream(converter.getSeekableInputStream());
+		engine.seek(start);
+		uncompressedIndex = converter.getIndex().hasUncompressedOffsets();
+		position = positionOf(start);
 	}
 
 	/**
@@ -86,7 +109,7 @@ public class GZipInputStreamRandomAccess  extends GZIPInputStream {
 	 * @throws IOException
 	 */
 	public GZipInputStreamRandomAccess(SeekableInputStream is, Long index) throws IOException {
-		super(new InputStreamConverter(is, index));
+		this(new InputStreamConverter(is, index));
 	}
 
 	/**
@@ -106,126 +129,304 @@ public class GZipInputStreamRandomAccess  extends GZIPInputStream {
 	 * @return
 	 */
 	public Map<Long, Long> getMetadata() {
-		return Collections.unmodifiableMap(((InputStreamConverter)this.in).getMetadata());
+		return ((InputStreamConverter)this.in).getMetadata();
+	}
+
+	/**
+	 * Return metadata information for given file as OffsetIndex, which supports floor and ceiling
+	 * lookup without boxing.
+	 * @return
+	 */
+	public OffsetIndex getIndex() {
+		return ((InputStreamConverter)this.in).getIndex();
 	}
 	
+	/**
+	 * Return statistics of data of every key in order of keys, i.e. its compressed and uncompressed
+	 * length, and number of records and range of record keys if writer recorded them. Nothing is
+	 * inflated, so these can be used to estimate work, skip data or count records.
+	 * @return
+	 */
+	public List<MemberStats> getMemberStats() {
+		return getIndex().getMemberStats();
+	}
+
+	/**
+	 * Verifies CRC and size of every member of file on given number of threads (see GZipVerifier).
+	 * Position of this reader does not change.
+	 * @param threads
+	 * @return damaged segments in file order, empty if file is intact
+	 * @throws IOException
+	 */
+	public List<GZipVerifier.BadMember> verify(int threads) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("gzinga-verifier"));
+		try {
+			InputStreamConverter converter = (InputStreamConverter)this.in;
+			return GZipVerifier.verify(converter.getSeekableInputStream(), converter.getIndex(), executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	/**
 	 * This method jump to location for specifies key. If specified key does not exist, then it
-	 * will jump to beginning of file.
+	 * will jump to nearest key before it. If there is no such key, or key is null, then it will jump
+	 * to beginning of file.
 	 * @param index
 	 * @throws IOException
 	 */
 	public void jumpToIndex(Long index) throws IOException {
-		((InputStreamConverter)this.in).jumpToIndex(index);
-		readHeader();
+		InputStreamConverter converter = (InputStreamConverter)this.in;
+		converter.jumpToIndex(index);
+		engine.seek(converter.getPos());
+		position = positionOf(converter.getPos());
+	}
+
+	/**
+	 * This method jumps to location for specified key of named dimension, or to nearest key before it
+	 * (see jumpToIndex(Long)).
+	 * @param dimension name of dimension, or null for default keys
+	 * @param key key, or null for beginning of file
+	 * @throws IOException
+	 */
+	public void jumpToIndex(String dimension, Long key) throws IOException {
+		if (dimension == null) {
+			jumpToIndex(key);
+			return;
+		}
+		long offset = key == null ? -1 : dimension(dimension).floorOffset(key);
+		if (offset == -1) {
+			offset = 0;
+		}
+		((InputStreamConverter)this.in).resetPos(offset);
+		engine.seek(offset);
+		position = positionOf(offset);
+	}
+
+	/**
+	 * Opens a new reader over same file (see openCursor()) which reads data of keys from fromKey to
+	 * toKey, both inclusive. Reader starts at member of nearest key at or before fromKey and returns
+	 * end of file at first member of a greater key which does not also hold toKey (see
+	 * OffsetIndex.higherOffset), so only members covering the range are read. Keys are expected to
+	 * be added in increasing order, like timestamps.
+	 * @param fromKey first key, or null to read from beginning of file
+	 * @param toKey last key, or null to read till end of file
+	 * @return
+	 * @throws IOException
+	 */
+	public GZipInputStreamRandomAccess openRange(Long fromKey, Long toKey) throws IOException {
+		return openRange(null, fromKey, toKey);
+	}
+
+	/**
+	 * Opens a new reader of key range (see openRange(Long, Long)) for keys of named dimension.
+	 * @param dimension name of dimension, or null for default keys
+	 * @param fromKey
+	 * @param toKey
+	 * @return
+	 * @throws IOException
+	 */
+	public GZipInputStreamRandomAccess openRange(String dimension, Long fromKey, Long toKey)
+			throws IOException {
+		if (fromKey != null && toKey != null && fromKey > toKey) {
+			throw new IllegalArgumentException("fromKey is greater than toKey");
+		}
+		OffsetIndex index = dimension(dimension);
+		GZipInputStreamRandomAccess cursor = openCursor();
+		cursor.jumpToIndex(dimension, fromKey);
+		long end = toKey == null ? -1 : index.higherOffset(toKey);
+		if (end > cursor.getMemberStart()) {
+			cursor.engine.setLimit(end);
+		}
+		return cursor;
+	}
+
+	private OffsetIndex dimension(String name) {
+		if (name == null) {
+			return getIndex();
+		}
+		OffsetIndex index = getIndex().getDimension(name);
+		if (index == null) {
+			throw new IllegalArgumentException("Unknown key dimension: " + name);
+		}
+		return index;
+	}
+
+	/**
+	 * Moves reader to given position in uncompressed data. Reader jumps to member which contains
+	 * position and inflates only rest of that member before it. If metadata does not have uncompressed
+	 * offsets (e.g. file written by earlier version), file is inflated from beginning.
+	 * @param pos
+	 * @throws IOException
+	 */
+	public void seek(long pos) throws IOException {
+		if (pos < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		long start = 0;
+		position = 0;
+		if (uncompressedIndex) {
+			OffsetIndex index = getIndex();
+			int m = index.floorMember(pos);
+			start = index.memberOffset(m);
+			position = index.memberUncompressedOffset(m);
+		}
+		engine.seek(start);
+		while (position < pos) {
+			long n = engine.skip(pos - position);
+			if (n <= 0) {
+				throw new IOException("Position beyond end of file");
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Return current position in uncompressed data.
+	 * @return position, or -1 if it is not known (reader was moved to a member by compressed
+	 * position and metadata does not have uncompressed offsets)
+	 */
+	public long getPosition() {
+		return position;
 	}
 	
 	/**
-	 * Return current position in file.
+	 * Opens a new reader over same file, positioned at beginning of file. New reader shares file handle
+	 * and metadata of this reader but has its own position, and reads using positioned reads (see
+	 * SeekableInputStream.read(long, byte[], int, int)), so several cursors can be used by different
+	 * threads concurrently. Closing cursor does not close this reader.
+	 * @return
+	 * @throws IOException
+	 */
+	public GZipInputStreamRandomAccess openCursor() throws IOException {
+		InputStreamConverter converter = (InputStreamConverter)this.in;
+		return new GZipInputStreamRandomAccess(new InputStreamConverter(
+				new SeekableCursor(converter.getSeekableInputStream()), converter.getIndex()));
+	}
+
+	/**
+	 * Opens a new reader over same file (see openCursor()) and jumps to location for specified key.
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	public GZipInputStreamRandomAccess openCursor(Long index) throws IOException {
+		GZipInputStreamRandomAccess cursor = openCursor();
+		cursor.jumpToIndex(index);
+		return cursor;
+	}
+
+	/**
+	 * Return current position in compressed file, i.e. position of next compressed byte which is
+	 * not yet consumed by inflater.
 	 * @return
 	 * @throws IOException
 	 */
 	public long getPos() throws IOException {
-		return ((InputStreamConverter)this.in).getPos();
+		return engine.getPos();
 	}
 	
 	/**
-	 * Reset file pointer position to specified location.
+	 * Return position in compressed file where member of last read data starts.
+	 * @return
+	 */
+	public long getMemberStart() {
+		return engine.getMemberStart();
+	}
+
+	/**
+	 * Reset file pointer position to specified location, which should be start of a member.
 	 * @param pos
 	 * @throws IOException
 	 */
 	public void resetPos(long pos) throws IOException {
-		((InputStreamConverter)this.in).resetPos(pos);	
+		engine.seek(pos);
+		position = positionOf(pos);
 	}
-	
-    /*
-     * Reads unsigned short in Intel byte order.
-     */
-    private int readUShort(InputStream in) throws IOException {
-        int b = readUByte(in);
-        return ((int)readUByte(in) << 8) | b;
-    }
 
-    /*
-     * Reads unsigned byte.
-     */
-    private int readUByte(InputStream in) throws IOException {
-        int b = in.read();
-        if (b == -1) {
-            throw new EOFException();
-        }
-        if (b < -1 || b > 255) {
-            // Report on this.in, not argument in; see read{Header, Trailer}.
-            throw new IOException(this.in.getClass().getName()
-                + ".read() returned value out of range -1..255: " + b);
-        }
-        return b;
-    }
-    
-    private byte[] tmpbuf = new byte[128];
-    /*
-     * Skips bytes of input data blocking until all bytes are skipped.
-     * Does not assume that the input stream is capable of seeking.
-     */
-    private void skipBytes(InputStream in, int n) throws IOException {
-        while (n > 0) {
-            int len = in.read(tmpbuf, 0, n < tmpbuf.length ? n : tmpbuf.length);
-            if (len == -1) {
-                throw new EOFException();
-            }
-            n -= len;
-        }
-    }
-    
-    /*
-     * Reads GZIP member header and returns the total byte number
-     * of this member header.
-     */
-	private int readHeader() throws IOException {
-        CheckedInputStream in = new CheckedInputStream(this.in, crc);
-        crc.reset();
-        // Check header magic
-        if (readUShort(in) != GZIP_MAGIC) {
-            throw new ZipException("Not in GZIP format");
-        }
-        // Check compression method
-        if (readUByte(in) != 8) {
-            throw new ZipException("Unsupported compression method");
-        }
-        // Read flags
-        int flg = readUByte(in);
-        // Skip MTIME, XFL, and OS fields
-        skipBytes(in, 6);
-        int n = 2 + 2 + 6;
-        // Skip optional extra field
-        if ((flg & FEXTRA) == FEXTRA) {
-            int m = readUShort(in);
-            skipBytes(in, m);
-            n += m + 2;
-        }
-        // Skip optional file name
-        if ((flg & FNAME) == FNAME) {
-            do {
-                n++;
-            } while (readUByte(in) != 0);
-        }
-        // Skip optional file comment
-        if ((flg & FCOMMENT) == FCOMMENT) {
-            do {
-                n++;
-            } while (readUByte(in) != 0);
-        }
-        // Check optional header CRC
-        if ((flg & FHCRC) == FHCRC) {
-            int v = (int)crc.getValue() & 0xffff;
-            if (readUShort(in) != v) {
-                throw new ZipException("Corrupt GZIP header");
-            }
-            n += 2;
-        }
-        crc.reset();
-        return n;
-    }
+	/*
+	 * Returns uncompressed offset of member which starts at given compressed offset, or -1.
+	 */
+	private long positionOf(long offset) {
+		if (offset == 0) {
+			return 0;
+		}
+		if (!uncompressedIndex) {
+			return -1;
+		}
+		OffsetIndex index = getIndex();
+		int m = index.memberAt(offset);
+		return m == -1 ? -1 : index.memberUncompressedOffset(m);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = engine.read();
+		if (b != -1 && position != -1) {
+			position++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		return advance(engine.read(buf, off, len));
+	}
+
+	/**
+	 * Reads uncompressed bytes into given buffer. Heap buffers are inflated into directly.
+	 * @param dst
+	 * @return number of bytes read, or -1 at end of file
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		return advance(engine.read(dst));
+	}
+
+	/**
+	 * Skips n uncompressed bytes. If metadata has uncompressed offsets and skipped range goes beyond
+	 * current member, reader seeks to target position, so only member which contains it is inflated.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (uncompressedIndex && position != -1) {
+			OffsetIndex index = getIndex();
+			long target = n > index.getUncompressedLength() - position ? index.getUncompressedLength()
+					: position + n;
+			if (target > position && index.memberUncompressedOffset(index.floorMember(target)) > position) {
+				long start = position;
+				seek(target);
+				return target - start;
+			}
+		}
+		long skipped = engine.skip(n);
+		if (skipped > 0 && position != -1) {
+			position += skipped;
+		}
+		return skipped;
+	}
+
+	private int advance(int n) {
+		if (n > 0 && position != -1) {
+			position += n;
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return engine.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		engine.close();
+		super.close();
+	}
 	
 	/**
 	 * Checks whether provided file is of type random access.
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * This class reads gzip members directly from a SeekableInputStream. Compressed data is read into a
+ * large input buffer, member headers are decoded in place from that buffer and Inflater is fed from
+ * it without any intermediate stream. CRC and ISIZE of every member are verified against its trailer.
+ *
+ * Unlike GZIPInputStream, position in compressed file (getPos()) is exact, i.e. it is position of
+ * next byte which is not yet consumed by inflater, and reader can be moved to start of any member
+ * using seek(long), also after end of file has been reached.
+ */
+public class GZipMemberInputStream extends InputStream {
+
+	public static final int DEFAULT_BUFFER_SIZE = GZipResourcePool.BUFFER_SIZE;
+
+	private final static int FHCRC      = 2;    // Header CRC
+	private final static int FEXTRA     = 4;    // Extra field
+	private final static int FNAME      = 8;    // File name
+	private final static int FCOMMENT   = 16;   // File comment
+
+	private static final int HEADER = 0;
+	private static final int BODY = 1;
+	private static final int EOF = 2;
+
+	private final SeekableInputStream in;
+	private final byte[] input;
+	/*
+	 * input[inputPos, inputLen) is not yet consumed, and input[0] is at inputStart in file.
+	 */
+	private int inputPos = 0;
+	private int inputLen = 0;
+	private long inputStart;
+	private boolean endOfInput = false;
+
+	private final GZipResourcePool pool = GZipResourcePool.getShared();
+	private final Inflater inf = pool.borrowInflater();
+	private final CRC32 crc = new CRC32();
+	private final byte[] single = new byte[1];
+	private byte[] scratch;
+	private int state = HEADER;
+	private long memberStart;
+	private long limit = Long.MAX_VALUE;
+	private boolean firstMember = true;
+	private boolean closed = false;
+
+	public GZipMemberInputStream(SeekableInputStream in) throws IOException {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates reader positioned at current position of given stream, which should be start of a member.
+	 * @param in
+	 * @param bufferSize size of compressed input buffer
+	 * @throws IOException
+	 */
+	public GZipMemberInputStream(SeekableInputStream in, int bufferSize) throws IOException {
+		if (bufferSize < 512) {
+			throw new IllegalArgumentException("Buffer size should be at least 512 bytes");
+		}
+		this.in = in;
+		this.input = pool.borrowBuffer(bufferSize);
+		this.inputStart = in.getPos();
+		this.memberStart = inputStart;
+	}
+
+	/**
+	 * Moves reader to given position in compressed file, which should be start of a member.
+	 * @param pos
+	 * @throws IOException
+	 */
+	public void seek(long pos) throws IOException {
+		ensureOpen();
+		in.seek(pos);
+		inputStart = pos;
+		inputPos = 0;
+		inputLen = 0;
+		endOfInput = false;
+		inf.reset();
+		crc.reset();
+		state = HEADER;
+		memberStart = pos;
+		firstMember = true;
+	}
+
+	/*
+	 * Moves reader to end of a member which has been read by some other means, so that end of file
+	 * or trailing garbage is expected as well as a further member.
+	 */
+	void seekAfterMember(long pos) throws IOException {
+		seek(pos);
+		firstMember = false;
+	}
+
+	/**
+	 * Sets position in compressed file of first member which is not read, i.e. reader returns end of
+	 * file instead of reading a member which starts at or after limit.
+	 * @param limit
+	 */
+	void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * @return position of next compressed byte which is not yet consumed.
+	 */
+	public long getPos() {
+		if (state == BODY) {
+			return inputStart + inputLen - inf.getRemaining();
+		}
+		return inputStart + inputPos;
+	}
+
+	/**
+	 * @return position in compressed file where current member starts.
+	 */
+	public long getMemberStart() {
+		return memberStart;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > buf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (state == EOF) {
+				return -1;
+			}
+			if (state == HEADER) {
+				if (!readHeader()) {
+					state = EOF;
+					return -1;
+				}
+				continue;
+			}
+			int n;
+			try {
+				n = inf.inflate(buf, off, len);
+			} catch (DataFormatException e) {
+				String s = e.getMessage();
+				throw new ZipException(s != null ? s : "Invalid ZLIB data format");
+			}
+			if (n > 0) {
+				crc.update(buf, off, n);
+				return n;
+			}
+			if (inf.finished()) {
+				inputPos = inputLen - inf.getRemaining();
+				readTrailer();
+			} else if (inf.needsDictionary()) {
+				throw new ZipException("Unexpected preset dictionary in gzip member");
+			} else if (inf.needsInput()) {
+				inputPos = inputLen;
+				if (!fill(1)) {
+					throw new ZipException("Unexpected end of gzip member at " + getPos());
+				}
+				inf.setInput(input, inputPos, inputLen - inputPos);
+			}
+		}
+	}
+
+	/**
+	 * Reads uncompressed bytes into given buffer. Heap buffers are inflated into directly, without
+	 * any copy.
+	 * @param dst
+	 * @return number of bytes read, or -1 at end of file
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (dst.hasArray()) {
+			int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0) {
+				((Buffer) dst).position(dst.position() + n);
+			}
+			return n;
+		}
+		if (scratch == null) {
+			scratch = pool.borrowBuffer(input.length);
+		}
+		int n = read(scratch, 0, Math.min(scratch.length, dst.remaining()));
+		if (n > 0) {
+			dst.put(scratch, 0, n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		if (scratch == null) {
+			scratch = pool.borrowBuffer(input.length);
+		}
+		long skipped = 0;
+		while (skipped < n) {
+			int len = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+			if (len == -1) {
+				break;
+			}
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return state == EOF ? 0 : 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			pool.returnInflater(inf);
+			pool.returnBuffer(input);
+			pool.returnBuffer(scratch);
+			in.close();
+		}
+	}
+
+	/*
+	 * Decodes member header from input buffer. Returns false if there is no further member.
+	 */
+	private boolean readHeader() throws IOException {
+		memberStart = inputStart + inputPos;
+		if (memberStart >= limit) {
+			return false;
+		}
+		boolean complete = fill(10);
+		if (!complete && inputLen == inputPos && !firstMember) {
+			return false;
+		}
+		int magic = complete ? (input[inputPos] & 0xff) | ((input[inputPos + 1] & 0xff) << 8) : -1;
+		if (magic != GZIPInputStream.GZIP_MAGIC) {
+			if (firstMember) {
+				throw new ZipException("Not in GZIP format");
+			}
+			// trailing garbage after last member is ignored, same as GZIPInputStream
+			return false;
+		}
+		firstMember = false;
+		if ((input[inputPos + 2] & 0xff) != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+		int flg = input[inputPos + 3] & 0xff;
+		crc.reset();
+		consumeHeader(10);
+		if ((flg & FEXTRA) == FEXTRA) {
+			requireHeader(2);
+			int xlen = (input[inputPos] & 0xff) | ((input[inputPos + 1] & 0xff) << 8);
+			consumeHeader(2);
+			while (xlen > 0) {
+				requireHeader(1);
+				int n = Math.min(xlen, inputLen - inputPos);
+				consumeHeader(n);
+				xlen -= n;
+			}
+		}
+		if ((flg & FNAME) == FNAME) {
+			skipZeroTerminated();
+		}
+		if ((flg & FCOMMENT) == FCOMMENT) {
+			skipZeroTerminated();
+		}
+		if ((flg & FHCRC) == FHCRC) {
+			int v = (int) crc.getValue() & 0xffff;
+			requireHeader(2);
+			if (((input[inputPos] & 0xff) | ((input[inputPos + 1] & 0xff) << 8)) != v) {
+				throw new ZipException("Corrupt GZIP header");
+			}
+			inputPos += 2;
+		}
+		crc.reset();
+		inf.reset();
+		inf.setInput(input, inputPos, inputLen - inputPos);
+		state = BODY;
+		return true;
+	}
+
+	private void skipZeroTerminated() throws IOException {
+		while (true) {
+			requireHeader(1);
+			int start = inputPos;
+			while (inputPos < inputLen && input[inputPos] != 0) {
+				inputPos++;
+			}
+			boolean found = inputPos < inputLen;
+			if (found) {
+				inputPos++;
+			}
+			crc.update(input, start, inputPos - start);
+			if (found) {
+				return;
+			}
+		}
+	}
+
+	private void consumeHeader(int n) {
+		crc.update(input, inputPos, n);
+		inputPos += n;
+	}
+
+	private void requireHeader(int n) throws IOException {
+		if (!fill(n)) {
+			throw new ZipException("Truncated GZIP header");
+		}
+	}
+
+	private void readTrailer() throws IOException {
+		if (!fill(8)) {
+			throw new ZipException("Truncated GZIP trailer");
+		}
+		long v = readUInt(inputPos);
+		long size = readUInt(inputPos + 4);
+		inputPos += 8;
+		if (v != crc.getValue()) {
+			throw new ZipException("Corrupt GZIP trailer: CRC mismatch in member at " + memberStart);
+		}
+		if (size != (inf.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt GZIP trailer: size mismatch in member at " + memberStart);
+		}
+		state = HEADER;
+	}
+
+	private long readUInt(int off) {
+		return ((input[off] & 0xff) | ((input[off + 1] & 0xff) << 8) | ((input[off + 2] & 0xff) << 16)
+				| ((long) (input[off + 3] & 0xff) << 24));
+	}
+
+	/*
+	 * Makes sure at least n unconsumed bytes are in input buffer, moving unconsumed bytes to start
+	 * of buffer if needed. Returns false if end of file is reached before that.
+	 */
+	private boolean fill(int n) throws IOException {
+		if (inputLen - inputPos >= n) {
+			return true;
+		}
+		if (inputPos > 0) {
+			int remaining = inputLen - inputPos;
+			System.arraycopy(input, inputPos, input, 0, remaining);
+			inputStart += inputPos;
+			inputPos = 0;
+			inputLen = remaining;
+		}
+		while (inputLen < n && !endOfInput) {
+			int len = in.read(input, inputLen, input.length - inputLen);
+			if (len == -1) {
+				endOfInput = true;
+			} else {
+				inputLen += len;
+			}
+		}
+		return inputLen - inputPos >= n;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -26,8 +26,9 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;*/
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
@@ -37,13 +38,15 @@ import java.util.zip.GZIPOutputStream;
 
 /**
  * This class implements a stream filter for writing compressed data in
- * the GZIP file format. Along with that, it writes extra metadata in each header.
- * In order to write extra metadata, 3rd bit of FLG will be set to 1.
+ * the GZIP file format. Every header has 3rd bit of FLG set to 1 with empty comment,
+ * which marks file as written for random access.
  * 
- * User can invoke method addOffset(T key) which will insert an entry into HashMap
+ * User can invoke method addOffset(T key) which will insert an entry into OffsetIndex
  * with value as current byte offset in compressed file. Every time, addOffset method is being 
- * called, all existing data will be flushed and new header will be written. This header will 
- * also have metadata information (maintained in HashMap).
+ * called, all existing data will be flushed and new header will be written. When stream is
+ * closed, metadata information (maintained in OffsetIndex) is written once at end of file in binary
+ * form (see IndexFooter). Metadata also records number of uncompressed bytes written before each
+ * key, so reader can seek by uncompressed position.
  * 
  * addOffset method takes generic type argument, so user can have any object (like Long, String etc)
  * as key. User needs to provide constructor for that type which takes String as input in order to
@@ -51,10 +54,18 @@ import java.util.zip.GZIPOutputStream;
  * 
  * Using this metadata information, user can jump to any location in file using GZipInputStreamRandomAccess.
  *
+ * All methods are synchronized, so stream can be shared by threads, but they write one at a time.
+ * For many concurrent writers see GZipConcurrentAppender.
+ *
  */
 public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
 	
 	long totalLength = 0;
+
+	/**
+	 * Number of uncompressed bytes written so far.
+	 */
+	long uncompressedLength = 0;
 	private static byte[] headerWithComment = new byte[] {
         (byte) GZIPInputStream.GZIP_MAGIC,        // Magic number (short)
         (byte)(GZIPInputStream.GZIP_MAGIC >> 8),  // Magic number (short)
@@ -71,9 +82,9 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
     };
 	
 	/**
-	 * HashMap for maintaing metadata information.
+	 * Index for maintaing metadata information.
 	 */
-	Map<Long, Long> offsetMap = new LinkedHashMap<Long, Long>();
+	OffsetIndex offsetIndex = new OffsetIndex();
 
     /**
      * CRC-32 of uncompressed data.
@@ -86,6 +97,40 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
      */
     private final static int TRAILER_SIZE = 8;
 
+    private boolean closed = false;
+
+    /*
+     * Compressed and uncompressed offsets where current member starts.
+     */
+    private long memberOffset = 0;
+    private long memberUncompressedOffset = 0;
+
+    /*
+     * Compression level of next member, or -2 if it is not changed.
+     */
+    private int nextLevel = -2;
+
+    /*
+     * Keys added since last checkpoint, or null if checkpoints are not written.
+     */
+    private OffsetIndex checkpointIndex;
+    private int checkpointKeys = 0;
+    private int checkpointInterval;
+    private long lastCheckpoint = IndexFooter.NO_CHECKPOINT;
+    private FileChannel channel;
+
+    /*
+     * Default keys whose data is being written, i.e. keys at offset segmentOffset, with record
+     * count (-1 if records are not counted) and range of record keys of their data so far.
+     */
+    private long segmentOffset = -1;
+    private long[] segmentKeys = new long[1];
+    private int segmentKeyCount = 0;
+    private long segmentRecords;
+    private long segmentMinKey = Long.MAX_VALUE;
+    private long segmentMaxKey = Long.MIN_VALUE;
+    private int recordDelimiter;
+
    /**
      * Creates a new output stream with the specified buffer size and
      * flush mode.
@@ -98,28 +143,206 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
      * @since 1.7
      */
     public GZipOutputStreamRandomAccess(OutputStream out, int size) throws IOException {
-        super(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true),
-              size,
+        this(out, new GZipWriterConfig().setBufferSize(size));
+    }
+
+    /**
+     * Creates a new output stream with compression level, strategy and buffer size of given
+     * configuration.
+     *
+     * @param out the output stream
+     * @param config compression settings
+     * @exception IOException If an I/O error has occurred.
+     */
+    public GZipOutputStreamRandomAccess(OutputStream out, GZipWriterConfig config) throws IOException {
+        this(out, config, new OffsetIndex(), 0, 0);
+    }
+
+    /*
+     * Creates writer which continues data of length bytes (uncompressed bytes) with given index.
+     */
+    private GZipOutputStreamRandomAccess(OutputStream out, GZipWriterConfig config, OffsetIndex index,
+    		long length, long uncompressed) throws IOException {
+        super(out, config.newDeflater(config.getLevel()),
+              config.getBufferSize(),
               true);
+        offsetIndex = index;
+        totalLength = length;
+        uncompressedLength = uncompressed;
+        memberOffset = length;
+        memberUncompressedOffset = uncompressed;
+        recordDelimiter = config.getRecordDelimiter();
+        segmentRecords = recordDelimiter == -1 ? -1 : 0;
+        checkpointInterval = config.getCheckpointInterval();
+        if (checkpointInterval > 0) {
+        	// first checkpoint of appended file also holds existing keys, as chain starts there
+        	checkpointIndex = new OffsetIndex();
+        	checkpointIndex.putAll(index);
+        }
+        if (config.isSyncCheckpoints() && out instanceof FileOutputStream) {
+        	channel = ((FileOutputStream) out).getChannel();
+        }
         writeHeader();
         crc.reset();
     }
+
+    /**
+     * Opens existing file written by this class for appending, with default configuration. If file
+     * does not exist or is empty, then it is created as with GZipOutputStreamRandomAccess(File).
+     * @param gzipFile
+     * @return
+     * @throws IOException
+     */
+    public static GZipOutputStreamRandomAccess append(File gzipFile) throws IOException {
+    	return append(gzipFile, new GZipWriterConfig());
+    }
+
+    /**
+     * Opens existing file written by this class for appending. Metadata of file is loaded, binary
+     * metadata at end of file is cut off and new members are written after last data member, so
+     * data is neither inflated nor compressed again. Keys added afterwards are merged with existing
+     * ones, and complete metadata is written at end of file again when stream is closed. Until then
+     * file has no metadata at its end.
+     *
+     * Files without metadata at their end, i.e. whose writer died before close or which were written
+     * by earlier versions, are recovered first (see GZipIndexRecovery): keys are collected from
+     * checkpoints and header comments, and incomplete last member is cut off. Damaged files are not
+     * appended to. Files whose binary metadata has no uncompressed offsets are inflated once to find
+     * them.
+     * @param gzipFile
+     * @param config compression settings of new members
+     * @return
+     * @throws IOException
+     */
+    public static GZipOutputStreamRandomAccess append(File gzipFile, GZipWriterConfig config)
+    		throws IOException {
+    	if (gzipFile.length() == 0) {
+    		return new GZipOutputStreamRandomAccess(new FileOutputStream(gzipFile), config);
+    	}
+    	OffsetIndex index = new OffsetIndex();
+    	long dataLength;
+    	SeekableRandomAccessFile in = new SeekableRandomAccessFile(gzipFile);
+    	try {
+    		// checks that file is written by this class
+    		new InputStreamConverter(in, false);
+    		// metadata is read from file itself, not from OffsetIndexCache, as it is about to change
+    		OffsetIndex loaded = GZipIndexRecovery.recover(in);
+    		index.putAll(loaded);
+    		dataLength = loaded.getDataLength();
+    		index.setUncompressedLength(loaded.getUncompressedLength());
+    		if (!index.hasUncompressedOffsets()) {
+    			in.seek(0);
+    			GZipMemberInputStream gzin = new GZipMemberInputStream(in);
+    			try {
+    				fillUncompressedOffsets(gzin, index, dataLength);
+    			} finally {
+    				gzin.close();
+    			}
+    		}
+    	} finally {
+    		in.close();
+    	}
+    	if (dataLength < gzipFile.length()) {
+    		RandomAccessFile raf = new RandomAccessFile(gzipFile, "rw");
+    		try {
+    			raf.setLength(dataLength);
+    		} finally {
+    			raf.close();
+    		}
+    	}
+    	return new GZipOutputStreamRandomAccess(new FileOutputStream(gzipFile, true), config, index,
+    			dataLength, index.getUncompressedLength());
+    }
+
+    /*
+     * Inflates data members once and sets uncompressed offset of every key of index, including
+     * keys of dimensions, and total uncompressed length.
+     */
+    private static void fillUncompressedOffsets(GZipMemberInputStream in, OffsetIndex index,
+    		long dataLength) throws IOException {
+    	in.setLimit(dataLength);
+    	long[] starts = new long[16];
+    	long[] uncompressedStarts = new long[16];
+    	int members = 0;
+    	long total = 0;
+    	GZipResourcePool pool = GZipResourcePool.getShared();
+    	byte[] buf = pool.borrowBuffer();
+    	try {
+    		int len;
+    		// every read returns data of one member only
+    		while ((len = in.read(buf, 0, buf.length)) != -1) {
+    			long start = in.getMemberStart();
+    			if (members == 0 || starts[members - 1] != start) {
+    				if (members == starts.length) {
+    					starts = Arrays.copyOf(starts, members * 2);
+    					uncompressedStarts = Arrays.copyOf(uncompressedStarts, members * 2);
+    				}
+    				starts[members] = start;
+    				uncompressedStarts[members] = total;
+    				members++;
+    			}
+    			total += len;
+    		}
+    	} finally {
+    		pool.returnBuffer(buf);
+    	}
+    	fillUncompressedOffsets(index, starts, uncompressedStarts, members, total);
+    	for (String name : index.getDimensionNames()) {
+    		fillUncompressedOffsets(index.getDimension(name), starts, uncompressedStarts, members, total);
+    	}
+    	index.setUncompressedLength(total);
+    }
+
+    /*
+     * Sets uncompressed offset of every key to that of first member with data at or after its
+     * offset, as members without data were not seen.
+     */
+    private static void fillUncompressedOffsets(OffsetIndex index, long[] starts,
+    		long[] uncompressedStarts, int members, long total) {
+    	for (int i = 0; i < index.size(); i++) {
+    		int m = Arrays.binarySearch(starts, 0, members, index.getOffset(i));
+    		if (m < 0) {
+    			m = -(m + 1);
+    		}
+    		index.setUncompressedOffset(i, m < members ? uncompressedStarts[m] : total);
+    	}
+    }
     
     public GZipOutputStreamRandomAccess(File gzipFile) throws IOException {
     	this(new FileOutputStream(gzipFile));
     }
+
+    /**
+     * Creates writer for given file. If async is true, compressed bytes are written into file by a
+     * dedicated I/O thread (see AsyncFlushingOutputStream), so deflate and addOffset do not wait for
+     * disk. To share one I/O thread across many files, wrap stream of each file into
+     * AsyncFlushingOutputStream with a shared ExecutorService instead.
+     * @param gzipFile
+     * @param async
+     * @throws IOException
+     */
+    public GZipOutputStreamRandomAccess(File gzipFile, boolean async) throws IOException {
+    	this(async ? new AsyncFlushingOutputStream(new FileOutputStream(gzipFile))
+    			: new FileOutputStream(gzipFile));
+    }
     
     /**
-     * Creates a new output stream with a default buffer size.
-     *
-     * <p>The new output stream instance is created as if by invoking
-     * the 2-argument constructor GZIPOutputStream(out, false).
+     * Creates a new output stream with default configuration (see GZipWriterConfig).
      *
      * @param out the output stream
      * @exception IOException If an I/O error has occurred.
      */
     public GZipOutputStreamRandomAccess(OutputStream out) throws IOException {
-        this(out, 512);   
+        this(out, new GZipWriterConfig());
+    }
+
+    /**
+     * Sets compression level of members which are started after this call, e.g. to compress recent
+     * data fast and older data better.
+     * @param level
+     */
+    public synchronized void setLevel(int level) {
+    	nextLevel = GZipWriterConfig.checkLevel(level);
     }
 
     /**
@@ -128,19 +351,165 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
      * compressed file with metadata information.
      * @param key
      * @throws IOException
+     * @throws IllegalArgumentException if key is null
      */
     public void addOffset(Long key) throws IOException {
+    	addOffset(null, key);
+    }
+
+    /**
+     * Same as addOffset(Long), but inserts entry for key of named dimension (see
+     * OffsetIndex.getDimension). If dimension is null, entry is inserted for default keys.
+     * @param dimension
+     * @param key
+     * @throws IOException
+     * @throws IllegalArgumentException if key is null
+     */
+    public synchronized void addOffset(String dimension, Long key) throws IOException {
+		ensureOpen();
+		checkKey(key);
+		resetGzipStream();
+		if (dimension == null) {
+			endSegment();
+		}
+		if (checkpointIndex != null && checkpointKeys >= checkpointInterval) {
+			writeCheckpoint();
+		}
+		memberOffset = totalLength;
+		memberUncompressedOffset = uncompressedLength;
+		addKey(dimension, key);
+		if (checkpointIndex != null && dimension == null) {
+			// key is also kept in header, so it can be recovered if writer dies before next checkpoint
+			totalLength += writeHeader(out, key + ":" + totalLength + ";");
+			crc.reset();
+		} else {
+			writeHeader();
+		}
+    }
+
+    /**
+     * Ends current member and writes keys added since last checkpoint into file, after which they
+     * survive a crash of writer (see GZipIndexRecovery). File is forced to disk if syncCheckpoints of
+     * configuration is set and stream was created for a file. Checkpoints are written automatically
+     * every checkpointInterval keys; if interval is not set, then first invocation starts writing of
+     * checkpoints.
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+    	ensureOpen();
+    	if (checkpointIndex == null) {
+    		checkpointIndex = new OffsetIndex();
+    		checkpointIndex.putAll(offsetIndex);
+    		checkpointInterval = Integer.MAX_VALUE;
+    	}
 		resetGzipStream();
-		offsetMap.put(key, totalLength);
-    	writeHeader();
+		writeCheckpoint();
+		memberOffset = totalLength;
+		memberUncompressedOffset = uncompressedLength;
+		writeHeader();
+    }
+
+    /*
+     * Writes checkpoint after end of member, and flushes it to disk.
+     */
+    private void writeCheckpoint() throws IOException {
+    	checkpointIndex.setUncompressedLength(uncompressedLength);
+    	long written = IndexFooter.writeCheckpoint(out, totalLength, checkpointIndex, lastCheckpoint);
+    	lastCheckpoint = totalLength + written - IndexFooter.LOCATOR_SIZE;
+    	totalLength += written;
+    	checkpointIndex = new OffsetIndex();
+    	checkpointKeys = 0;
+    	out.flush();
+    	if (channel != null) {
+    		channel.force(false);
+    	}
+    }
+
+    /**
+     * Inserts entry for key of named dimension with location of current member, without starting a
+     * new member. This way one member can have keys in several dimensions, e.g. addOffset(timestamp)
+     * followed by addKey("sequence", number).
+     * @param dimension name of dimension, or null for default keys
+     * @param key
+     * @throws IllegalArgumentException if key is null
+     */
+    public synchronized void addKey(String dimension, Long key) {
+    	checkKey(key);
+    	if (dimension == null) {
+    		if (memberOffset != segmentOffset) {
+    			endSegment();
+    			segmentOffset = memberOffset;
+    		}
+    		if (segmentKeyCount == segmentKeys.length) {
+    			segmentKeys = Arrays.copyOf(segmentKeys, segmentKeyCount * 2);
+    		}
+    		segmentKeys[segmentKeyCount++] = key;
+    	}
+    	OffsetIndex index = dimension == null ? offsetIndex : offsetIndex.dimension(dimension);
+    	index.put(key, memberOffset, memberUncompressedOffset);
+    	if (checkpointIndex != null) {
+    		index = dimension == null ? checkpointIndex : checkpointIndex.dimension(dimension);
+    		index.put(key, memberOffset, memberUncompressedOffset);
+    		checkpointKeys++;
+    	}
     }
     
+    private static void checkKey(Long key) {
+    	if (key == null) {
+    		throw new IllegalArgumentException("Key is null");
+    	}
+    }
+
+    /**
+     * Adds given number of records to record count of data of current key, e.g. for records which
+     * are not delimited by a byte (see GZipWriterConfig.setRecordDelimiter).
+     * @param count
+     */
+    public synchronized void addRecords(long count) {
+    	segmentRecords = segmentRecords == -1 ? count : segmentRecords + count;
+    }
+
+    /**
+     * Widens range of record keys of data of current key, e.g. by timestamp of every record written.
+     * Range is stored in metadata (see MemberStats), so readers can skip data without matching records.
+     * @param key
+     */
+    public synchronized void addRecordKey(long key) {
+    	segmentMinKey = Math.min(segmentMinKey, key);
+    	segmentMaxKey = Math.max(segmentMaxKey, key);
+    }
+
+    /*
+     * Stores record statistics of data written since default keys of current segment were added,
+     * and starts counting for next segment. Statistics of data before first key are dropped.
+     */
+    private void endSegment() {
+    	for (int k = 0; k < segmentKeyCount; k++) {
+    		long key = segmentKeys[k];
+    		int i = offsetIndex.indexOf(key);
+    		offsetIndex.setRecordStats(i, segmentRecords, segmentMinKey, segmentMaxKey);
+    		if (checkpointIndex != null && offsetIndex.hasRecordStats()) {
+    			int j = checkpointIndex.indexOf(key);
+    			if (j == -1) {
+    				// key is in an earlier checkpoint already, so it is written again with statistics
+    				checkpointIndex.put(key, offsetIndex.getOffset(i), offsetIndex.getUncompressedOffset(i));
+    				j = checkpointIndex.indexOf(key);
+    			}
+    			checkpointIndex.setRecordStats(j, segmentRecords, segmentMinKey, segmentMaxKey);
+    		}
+    	}
+    	segmentKeyCount = 0;
+    	segmentRecords = recordDelimiter == -1 ? -1 : 0;
+    	segmentMinKey = Long.MAX_VALUE;
+    	segmentMaxKey = Long.MIN_VALUE;
+    }
+
     /**
      * This method returns current metadata information.
      * @return Map<T, Long> with exisitng metadata information.
      */
     public Map<Long, Long> getOffsetMap() {
-    	return Collections.unmodifiableMap(offsetMap);
+    	return offsetIndex.asMap();
     }
     
 	/**
@@ -152,44 +521,107 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
      * @exception IOException If an I/O error has occurred.
      */
     public synchronized void write(byte[] buf, int off, int len) throws IOException {
+        ensureOpen();
         super.write(buf, off, len);
         crc.update(buf, off, len);
+        uncompressedLength += len;
+        if (recordDelimiter != -1) {
+        	byte delimiter = (byte) recordDelimiter;
+        	for (int i = off; i < off + len; i++) {
+        		if (buf[i] == delimiter) {
+        			segmentRecords++;
+        		}
+        	}
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        super.flush();
     }
 
     /**
      * This method flushes all data and resets compress stream.
      * @throws IOException
      */
-    public void resetGzipStream() throws IOException {
+    public synchronized void resetGzipStream() throws IOException {
+		// deflater is returned to pool on close, and may be used by another writer by now
+		ensureOpen();
 		finish();
 		def.reset();
+		if (nextLevel != -2) {
+			def.setLevel(nextLevel);
+			nextLevel = -2;
+		}
     }
     
+    /**
+     * Finishes current member, writes metadata information at end of file and closes underlying stream.
+     */
     @Override
-    public void close() throws IOException {
-		resetGzipStream();
-    	writeHeader();
-    	super.close();
+    public synchronized void close() throws IOException {
+    	if (closed) {
+    		return;
+    	}
+		try {
+			finish();
+			endSegment();
+			offsetIndex.setUncompressedLength(uncompressedLength);
+			totalLength += IndexFooter.write(out, totalLength, offsetIndex);
+		} finally {
+			closed = true;
+			try {
+				out.close();
+			} finally {
+				// deflater is borrowed from GZipResourcePool and not ended by DeflaterOutputStream
+				GZipResourcePool.getShared().returnDeflater(def);
+			}
+		}
+    }
+
+    private void ensureOpen() throws IOException {
+    	if (closed) {
+    		throw new IOException("Stream closed");
+    	}
     }
     
     /**
-     * This method writes header into compressed stream. In this, 3rd bit in FLG will be set and metadata
-     * information will be written at end of header with special byte '0' at end.
+     * This method writes header into compressed stream. In this, 3rd bit in FLG will be set and
+     * empty comment will be written at end of header.
      * @throws IOException
      */
-    public void writeHeader() throws IOException {
-    	out.write(headerWithComment);
-    	totalLength += headerWithComment.length;
-    	StringBuffer sb = new StringBuffer();
-    	for(Map.Entry<Long, Long> entry : offsetMap.entrySet()) {
-    		sb.append(entry.getKey()).append(":").append(entry.getValue()).append(";");
-    	}
-    	out.write(sb.toString().getBytes());  
-    	totalLength += sb.toString().getBytes().length;
-    	out.write(new byte[]{0});
-    	totalLength += 1;
+    public synchronized void writeHeader() throws IOException {
+    	ensureOpen();
+    	totalLength += writeHeader(out);
     	crc.reset();
     }
+
+    /**
+     * Writes header with empty comment into provided stream. This is shared with
+     * GZipParallelOutputStreamRandomAccess so both writers produce identical headers.
+     * @param out stream to write header into
+     * @return number of bytes written
+     * @throws IOException
+     */
+    static int writeHeader(OutputStream out) throws IOException {
+    	out.write(headerWithComment);
+    	out.write(0);
+    	return headerWithComment.length + 1;
+    }
+
+    /*
+     * Writes header with given printable ASCII comment.
+     */
+    private static int writeHeader(OutputStream out, String comment) throws IOException {
+    	byte[] bytes = comment.getBytes("US-ASCII");
+    	out.write(headerWithComment);
+    	out.write(bytes);
+    	out.write(0);
+    	return headerWithComment.length + bytes.length + 1;
+    }
 	
     /**
      * Finishes writing compressed data to the output stream without closing
@@ -197,8 +629,8 @@ public class GZipOutputStreamRandomAccess extends DeflaterOutputStream {
      * in succession to the same output stream.
      * @exception IOException if an I/O error has occurred
      */
-    public void finish() throws IOException {
-        if (!def.finished()) {
+    public synchronized void finish() throws IOException {
+        if (!closed && !def.finished()) {
             def.finish();
             while (!def.finished()) {
                 int len = def.deflate(buf, 0, buf.length);
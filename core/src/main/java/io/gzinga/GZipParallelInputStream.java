@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class reads whole file written using GZipOutputStreamRandomAccess and inflates several members
+ * at once on a pool of threads. Metadata information tells where members start, so file is divided
+ * into segments at those byte offsets. Compressed bytes of each segment are read in file order by the
+ * calling thread and inflated by a worker, and uncompressed bytes are returned in file order.
+ *
+ * At most readAhead segments are submitted but not yet consumed, which bounds memory used by this
+ * stream to readAhead times (compressed + uncompressed) size of a segment. Segments larger than
+ * maxSegmentSize (e.g. whole file, if it has no keys) are not held in memory, but inflated by
+ * calling thread while they are read.
+ */
+public class GZipParallelInputStream extends InputStream {
+
+	/**
+	 * Compressed size above which segment is inflated sequentially instead of by a worker.
+	 */
+	public static final int DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/*
+	 * Initial capacity of buffer of uncompressed bytes of a segment.
+	 */
+	private static final int MAX_INITIAL_CAPACITY = 16 * 1024 * 1024;
+
+	private final SeekableInputStream raf;
+	private final ExecutorService executor;
+	private final boolean shutdownExecutor;
+	private final int readAhead;
+	private final long[] segments;
+	private int nextSegment = 0;
+
+	private final int maxSegmentSize;
+
+	private final ArrayDeque<Pending> window = new ArrayDeque<Pending>();
+	private byte[] current = new byte[0];
+	private int currentPos = 0;
+	private final byte[] single = new byte[1];
+	/*
+	 * Reader of large segment which is being read, or null.
+	 */
+	private GZipMemberInputStream sequential;
+	private boolean closed = false;
+
+	/**
+	 * Creates stream which inflates using given number of threads.
+	 * @param is SeekableInputStream object
+	 * @param threads number of inflater threads
+	 * @throws IOException
+	 */
+	public GZipParallelInputStream(SeekableInputStream is, int threads) throws IOException {
+		this(is, Executors.newFixedThreadPool(threads, new DaemonThreadFactory("gzinga-inflater")), true,
+				threads * 2, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates stream which inflates using one thread per available processor.
+	 * @param gzipFile
+	 * @throws IOException
+	 */
+	public GZipParallelInputStream(File gzipFile) throws IOException {
+		this(new SeekableRandomAccessFile(gzipFile), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates stream which submits inflate tasks to provided executor. Executor will not be shut down
+	 * when stream is closed.
+	 * @param is SeekableInputStream object
+	 * @param executor executor to run inflate tasks
+	 * @param readAhead maximum number of segments inflated ahead of reader
+	 * @throws IOException
+	 */
+	public GZipParallelInputStream(SeekableInputStream is, ExecutorService executor, int readAhead)
+			throws IOException {
+		this(is, executor, false, readAhead, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	GZipParallelInputStream(SeekableInputStream is, ExecutorService executor, int readAhead,
+			int maxSegmentSize) throws IOException {
+		this(is, executor, false, readAhead, maxSegmentSize);
+	}
+
+	private GZipParallelInputStream(SeekableInputStream is, ExecutorService executor,
+			boolean shutdownExecutor, int readAhead, int maxSegmentSize) throws IOException {
+		if (readAhead <= 0) {
+			throw new IllegalArgumentException("Read ahead should be greater than 0");
+		}
+		if (maxSegmentSize <= 0) {
+			throw new IllegalArgumentException("Maximum segment size should be greater than 0");
+		}
+		this.maxSegmentSize = maxSegmentSize;
+		this.raf = is;
+		this.executor = executor;
+		this.shutdownExecutor = shutdownExecutor;
+		this.readAhead = readAhead;
+		InputStreamConverter converter = new InputStreamConverter(is, true);
+		long[] offsets = converter.getIndex().sortedOffsets();
+		long[] bounds = new long[offsets.length + 2];
+		int n = 0;
+		bounds[n++] = 0;
+		for (long offset : offsets) {
+			if (offset > bounds[n - 1]) {
+				bounds[n++] = offset;
+			}
+		}
+		if (is.getLen() > bounds[n - 1]) {
+			bounds[n++] = is.getLen();
+		}
+		this.segments = Arrays.copyOf(bounds, n);
+		fill();
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (currentPos == current.length) {
+			if (sequential != null) {
+				int n = sequential.read(buf, off, len);
+				if (n != -1) {
+					return n;
+				}
+				sequential.close();
+				sequential = null;
+				fill();
+				continue;
+			}
+			if (window.isEmpty()) {
+				return -1;
+			}
+			Pending next = window.poll();
+			if (next.future == null) {
+				SeekableCursor cursor = new SeekableCursor(raf);
+				cursor.seek(next.start);
+				sequential = new GZipMemberInputStream(cursor);
+				sequential.setLimit(next.end);
+				continue;
+			}
+			current = get(next.future);
+			currentPos = 0;
+			fill();
+		}
+		int n = Math.min(len, current.length - currentPos);
+		System.arraycopy(current, currentPos, buf, off, n);
+		currentPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current.length - currentPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Pending p : window) {
+			if (p.future != null) {
+				p.future.cancel(true);
+			}
+		}
+		window.clear();
+		if (sequential != null) {
+			sequential.close();
+			sequential = null;
+		}
+		if (shutdownExecutor) {
+			executor.shutdownNow();
+		}
+		raf.close();
+	}
+
+	/*
+	 * Reads compressed bytes of next segments and submits them for inflating till window is full.
+	 */
+	private void fill() throws IOException {
+		while (window.size() < readAhead && nextSegment < segments.length - 1) {
+			long start = segments[nextSegment];
+			long end = segments[nextSegment + 1];
+			nextSegment++;
+			if (end - start > maxSegmentSize) {
+				// read sequentially once it is reached, see read
+				window.add(new Pending(null, start, end));
+				continue;
+			}
+			final byte[] compressed = new byte[(int) (end - start)];
+			raf.seek(start);
+			int total = 0;
+			while (total < compressed.length) {
+				int len = raf.read(compressed, total, compressed.length - total);
+				if (len == -1) {
+					throw new EOFException("Unexpected end of file at " + (start + total));
+				}
+				total += len;
+			}
+			window.add(new Pending(executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return inflate(compressed);
+				}
+			}), start, end));
+		}
+	}
+
+	private static byte[] inflate(byte[] compressed) throws IOException {
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		GZipMemberInputStream gzin = new GZipMemberInputStream(new Segment(compressed));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+				(int) Math.min(compressed.length * 4L, MAX_INITIAL_CAPACITY));
+		byte[] buf = pool.borrowBuffer();
+		try {
+			int len;
+			while ((len = gzin.read(buf, 0, buf.length)) != -1) {
+				bos.write(buf, 0, len);
+			}
+		} finally {
+			gzin.close();
+			pool.returnBuffer(buf);
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while inflating segment");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error in inflating segment", e.getCause());
+		}
+	}
+
+	/*
+	 * Segment in window, with its inflate task, or with null task if it is read sequentially.
+	 */
+	private static final class Pending {
+		final Future<byte[]> future;
+		final long start;
+		final long end;
+
+		Pending(Future<byte[]> future, long start, long end) {
+			this.future = future;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/*
+	 * Compressed bytes of one segment, which are inflated by GZipMemberInputStream with pooled
+	 * Inflater and buffers.
+	 */
+	private static final class Segment extends SeekableInputStream {
+		private final byte[] data;
+		private int pos = 0;
+
+		Segment(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public void seek(long offset) {
+			pos = (int) Math.min(offset, data.length);
+		}
+
+		@Override
+		public long getPos() {
+			return pos;
+		}
+
+		@Override
+		public long getLen() {
+			return data.length;
+		}
+
+		@Override
+		public int read() {
+			return pos < data.length ? data[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos >= data.length) {
+				return -1;
+			}
+			int n = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes same file format as GZipOutputStreamRandomAccess, but compression is performed
+ * on a pool of worker threads.
+ *
+ * Input is cut into blocks of blockSize bytes. Each block is deflated independently by a worker
+ * (primed with last 32 KB of previous block of same member as dictionary) and compressed blocks are
+ * written into underlying stream in order by the calling thread. Blocks of one member are joined with
+ * sync flush, so each member is still a single gzip member. Members are created exactly where
+ * addOffset is invoked, so metadata information has same meaning as with GZipOutputStreamRandomAccess
+ * and file can be read with GZIPInputStream as well as GZipInputStreamRandomAccess.
+ *
+ * Number of blocks waiting to be written is bounded by maxPendingBlocks, after which write blocks
+ * till oldest block is compressed and written. Compression level, strategy and priming of blocks
+ * with dictionary are set by GZipWriterConfig.
+ */
+public class GZipParallelOutputStreamRandomAccess extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final boolean shutdownExecutor;
+	private final int blockSize;
+	private final int maxPendingBlocks;
+	private final GZipWriterConfig config;
+
+	long totalLength = 0;
+
+	/**
+	 * Number of uncompressed bytes of members written so far.
+	 */
+	long uncompressedLength = 0;
+
+	/**
+	 * Index for maintaing metadata information. Entries are added when header of member is written.
+	 */
+	OffsetIndex offsetIndex = new OffsetIndex();
+
+	private final ArrayDeque<Block> pending = new ArrayDeque<Block>();
+	private final CRC32 crc = new CRC32();
+	private final byte[] trailer = new byte[8];
+	/*
+	 * Uncompressed blocks which are no longer needed by any compression task, for reuse.
+	 */
+	private final ArrayDeque<byte[]> spareBlocks = new ArrayDeque<byte[]>();
+	/*
+	 * Uncompressed data of last written block, which can still be dictionary of next block.
+	 */
+	private byte[] writtenData;
+	private byte[] block;
+	private int blockLen = 0;
+	private byte[] dictionary;
+	private int dictionaryLen = 0;
+	private long memberSize = 0;
+	private boolean headerPending = true;
+	private Long pendingKey;
+	private boolean closed = false;
+
+	/**
+	 * Creates a new output stream which compresses using given number of threads.
+	 * @param out the output stream
+	 * @param threads number of compression threads
+	 * @throws IOException
+	 */
+	public GZipParallelOutputStreamRandomAccess(OutputStream out, int threads) throws IOException {
+		this(out, Executors.newFixedThreadPool(threads, new DaemonThreadFactory("gzinga-deflater")), true,
+				DEFAULT_BLOCK_SIZE, threads * 2, new GZipWriterConfig());
+	}
+
+	/**
+	 * Creates a new output stream which compresses using one thread per available processor.
+	 * @param out the output stream
+	 * @throws IOException
+	 */
+	public GZipParallelOutputStreamRandomAccess(OutputStream out) throws IOException {
+		this(out, Runtime.getRuntime().availableProcessors());
+	}
+
+	public GZipParallelOutputStreamRandomAccess(File gzipFile) throws IOException {
+		this(new FileOutputStream(gzipFile));
+	}
+
+	/**
+	 * Creates a new output stream which submits compression tasks to provided executor. Executor will
+	 * not be shut down when stream is closed, so it can be shared across multiple writers.
+	 * @param out the output stream
+	 * @param executor executor to run compression tasks
+	 * @param blockSize number of uncompressed bytes in each block
+	 * @param maxPendingBlocks maximum number of blocks submitted but not yet written
+	 * @throws IOException
+	 */
+	public GZipParallelOutputStreamRandomAccess(OutputStream out, ExecutorService executor, int blockSize,
+			int maxPendingBlocks) throws IOException {
+		this(out, executor, false, blockSize, maxPendingBlocks, new GZipWriterConfig());
+	}
+
+	/**
+	 * Creates a new output stream which submits compression tasks to provided executor, with
+	 * compression settings of given configuration. If adaptive is set, blocks submitted while
+	 * maxPendingBlocks blocks are waiting are compressed with minLevel.
+	 * @param out the output stream
+	 * @param executor executor to run compression tasks
+	 * @param blockSize number of uncompressed bytes in each block
+	 * @param maxPendingBlocks maximum number of blocks submitted but not yet written
+	 * @param config compression settings
+	 * @throws IOException
+	 */
+	public GZipParallelOutputStreamRandomAccess(OutputStream out, ExecutorService executor, int blockSize,
+			int maxPendingBlocks, GZipWriterConfig config) throws IOException {
+		this(out, executor, false, blockSize, maxPendingBlocks, config);
+	}
+
+	private GZipParallelOutputStreamRandomAccess(OutputStream out, ExecutorService executor,
+			boolean shutdownExecutor, int blockSize, int maxPendingBlocks, GZipWriterConfig config)
+			throws IOException {
+		if (blockSize <= 0 || maxPendingBlocks <= 0) {
+			throw new IllegalArgumentException("Block size and pending blocks should be greater than 0");
+		}
+		this.out = out;
+		this.executor = executor;
+		this.shutdownExecutor = shutdownExecutor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = maxPendingBlocks;
+		this.config = config.copy();
+		this.block = new byte[blockSize];
+	}
+
+	/**
+	 * Invoking this method will end current member. It will insert new entry into metadata for specified
+	 * key with byte location of next member, which will be known once all previous blocks are written.
+	 * @param key
+	 * @throws IOException
+	 */
+	public void addOffset(Long key) throws IOException {
+		ensureOpen();
+		endMember();
+		pendingKey = key;
+	}
+
+	/**
+	 * This method returns current metadata information. It waits for all submitted blocks to be written
+	 * so that byte offsets of all added keys are known.
+	 * @return Map<Long, Long> with exisitng metadata information.
+	 * @throws IOException
+	 */
+	public Map<Long, Long> getOffsetMap() throws IOException {
+		if (!closed) {
+			drain(0);
+			if (headerPending) {
+				writeMemberHeader(pendingKey);
+				headerPending = false;
+				pendingKey = null;
+			}
+		}
+		return offsetIndex.asMap();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		crc.update(buf, off, len);
+		memberSize += len;
+		while (len > 0) {
+			int n = Math.min(len, blockSize - blockLen);
+			System.arraycopy(buf, off, block, blockLen, n);
+			blockLen += n;
+			off += n;
+			len -= n;
+			if (blockLen == blockSize) {
+				submitBlock(false);
+			}
+		}
+	}
+
+	/**
+	 * Compresses buffered data with sync flush and writes all compressed blocks into underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (blockLen > 0) {
+			submitBlock(false);
+		}
+		drain(0);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			endMember();
+			drain(0);
+			offsetIndex.setUncompressedLength(uncompressedLength);
+			totalLength += IndexFooter.write(out, totalLength, offsetIndex);
+		} finally {
+			closed = true;
+			try {
+				out.close();
+			} finally {
+				if (shutdownExecutor) {
+					executor.shutdownNow();
+				}
+			}
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void endMember() throws IOException {
+		submitBlock(true);
+		crc.reset();
+		memberSize = 0;
+		dictionary = null;
+		dictionaryLen = 0;
+		headerPending = true;
+	}
+
+	private void submitBlock(final boolean last) throws IOException {
+		final byte[] data = block;
+		final int dataLen = blockLen;
+		final byte[] dict = config.isPrimeDictionary() ? dictionary : null;
+		final int dictLen = dictionaryLen;
+		final int level = config.levelFor(pending.size() >= maxPendingBlocks);
+		Block b = new Block();
+		b.input = data;
+		b.header = headerPending;
+		b.key = pendingKey;
+		b.last = last;
+		b.crc = (int) crc.getValue();
+		b.size = memberSize;
+		b.data = executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflate(data, dataLen, dict, dictLen, last, level);
+			}
+		});
+		pending.add(b);
+		headerPending = false;
+		pendingKey = null;
+		dictionary = data;
+		dictionaryLen = dataLen;
+		block = spareBlocks.isEmpty() ? new byte[blockSize] : spareBlocks.poll();
+		blockLen = 0;
+		while (!pending.isEmpty() && pending.peek().data.isDone()) {
+			writeBlock(pending.poll());
+		}
+		drain(maxPendingBlocks);
+	}
+
+	private byte[] deflate(byte[] data, int dataLen, byte[] dict, int dictLen, boolean last, int level) {
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		Deflater def = config.newDeflater(level);
+		byte[] buf = pool.borrowBuffer();
+		try {
+			if (dict != null) {
+				int n = Math.min(dictLen, DICTIONARY_SIZE);
+				def.setDictionary(dict, dictLen - n, n);
+			}
+			def.setInput(data, 0, dataLen);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(dataLen / 2 + 64);
+			if (last) {
+				def.finish();
+				while (!def.finished()) {
+					int len = def.deflate(buf, 0, buf.length);
+					bos.write(buf, 0, len);
+				}
+			} else {
+				while (true) {
+					int len = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+					bos.write(buf, 0, len);
+					// first call may only apply level and strategy and return early, so input
+					// should also be consumed
+					if (len < buf.length && def.needsInput()) {
+						break;
+					}
+				}
+			}
+			return bos.toByteArray();
+		} finally {
+			pool.returnDeflater(def);
+			pool.returnBuffer(buf);
+		}
+	}
+
+	/*
+	 * Writes pending blocks in order till number of pending blocks is not more than maxPending.
+	 */
+	private void drain(int maxPending) throws IOException {
+		while (pending.size() > maxPending) {
+			writeBlock(pending.poll());
+		}
+	}
+
+	private void writeBlock(Block b) throws IOException {
+		byte[] data;
+		try {
+			data = b.data.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing block");
+		} catch (ExecutionException e) {
+			throw new IOException("Error in compressing block", e.getCause());
+		}
+		if (b.header) {
+			writeMemberHeader(b.key);
+		}
+		out.write(data);
+		totalLength += data.length;
+		// compression of this block was last use of previous block as dictionary
+		if (writtenData != null && spareBlocks.size() < maxPendingBlocks) {
+			spareBlocks.add(writtenData);
+		}
+		writtenData = b.input;
+		if (b.last) {
+			writeInt(b.crc, trailer, 0);
+			writeInt((int) b.size, trailer, 4);
+			out.write(trailer);
+			totalLength += trailer.length;
+			uncompressedLength += b.size;
+		}
+	}
+
+	private void writeMemberHeader(Long key) throws IOException {
+		if (key != null) {
+			offsetIndex.put(key, totalLength, uncompressedLength);
+		}
+		totalLength += GZipOutputStreamRandomAccess.writeHeader(out);
+	}
+
+	/*
+	 * Writes integer in Intel byte order to a byte array, starting at a
+	 * given offset.
+	 */
+	private static void writeInt(int i, byte[] buf, int offset) {
+		buf[offset] = (byte) (i & 0xff);
+		buf[offset + 1] = (byte) ((i >> 8) & 0xff);
+		buf[offset + 2] = (byte) ((i >> 16) & 0xff);
+		buf[offset + 3] = (byte) ((i >> 24) & 0xff);
+	}
+
+	private static final class Block {
+		Future<byte[]> data;
+		byte[] input;
+		boolean header;
+		Long key;
+		boolean last;
+		int crc;
+		long size;
+	}
+}
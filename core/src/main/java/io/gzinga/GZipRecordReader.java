@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * This class iterates over records of uncompressed data without allocating anything per record.
+ * Every call of next() makes current record a slice of an internal buffer, given by getBuffer(),
+ * getOffset() and getLength(), which is valid till next call. No String is created and no charset is
+ * decoded, so callers can parse bytes in place.
+ *
+ * Records are either terminated by a delimiter byte (e.g. '\n' for lines), which is not part of
+ * record, or prefixed by their length as 4 byte big-endian int (LENGTH_PREFIXED), as written by
+ * DataOutputStream.writeInt. Last record does not need a delimiter.
+ *
+ * Members written after GZipOutputStreamRandomAccess.addOffset start at record boundaries, so reader
+ * can be created over a stream positioned at any key, e.g. after jumpToIndex, or over openRange or
+ * openCursor, and its first record is a complete one:
+ *
+ *     GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file, key);
+ *     GZipRecordReader records = new GZipRecordReader(gzin, '\n');
+ *     while (records.next()) {
+ *         parse(records.getBuffer(), records.getOffset(), records.getLength());
+ *     }
+ *
+ * Buffer is borrowed from GZipResourcePool. It grows only if a record is larger than buffer.
+ */
+public class GZipRecordReader implements Closeable {
+
+	/**
+	 * Delimiter of records which are prefixed by their length instead.
+	 */
+	public static final int LENGTH_PREFIXED = -1;
+
+	private final InputStream in;
+	private final int delimiter;
+	private byte[] buffer;
+	private final byte[] pooled;
+	/*
+	 * buffer[pos, limit) is read from stream but not yet returned.
+	 */
+	private int pos = 0;
+	private int limit = 0;
+	private int recordOffset = 0;
+	private int recordLength = 0;
+	private long records = 0;
+	private boolean eof = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates reader of lines, i.e. of records delimited by '\n'.
+	 * @param in
+	 */
+	public GZipRecordReader(InputStream in) {
+		this(in, '\n');
+	}
+
+	/**
+	 * @param in stream of uncompressed data, positioned at start of a record
+	 * @param delimiter byte which ends every record, or LENGTH_PREFIXED
+	 */
+	public GZipRecordReader(InputStream in, int delimiter) {
+		if (delimiter < LENGTH_PREFIXED || delimiter > 0xff) {
+			throw new IllegalArgumentException("Invalid record delimiter: " + delimiter);
+		}
+		this.in = in;
+		this.delimiter = delimiter;
+		this.pooled = GZipResourcePool.getShared().borrowBuffer();
+		this.buffer = pooled;
+	}
+
+	/**
+	 * Moves to next record.
+	 * @return false if there are no more records
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		boolean found = delimiter == LENGTH_PREFIXED ? nextLengthPrefixed() : nextDelimited();
+		if (found) {
+			records++;
+		}
+		return found;
+	}
+
+	/**
+	 * @return buffer which holds current record. It may change when next() is invoked.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return index in buffer where current record starts
+	 */
+	public int getOffset() {
+		return recordOffset;
+	}
+
+	/**
+	 * @return length of current record, without delimiter or length prefix
+	 */
+	public int getLength() {
+		return recordLength;
+	}
+
+	/**
+	 * @return number of records returned so far
+	 */
+	public long getRecordCount() {
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			GZipResourcePool.getShared().returnBuffer(pooled);
+			in.close();
+		}
+	}
+
+	private boolean nextDelimited() throws IOException {
+		byte d = (byte) delimiter;
+		// bytes before scan were already searched for delimiter
+		int scan = pos;
+		while (true) {
+			for (int i = scan; i < limit; i++) {
+				if (buffer[i] == d) {
+					recordOffset = pos;
+					recordLength = i - pos;
+					pos = i + 1;
+					return true;
+				}
+			}
+			scan = limit - pos;
+			if (!fill()) {
+				if (pos == limit) {
+					return false;
+				}
+				// last record without delimiter
+				recordOffset = pos;
+				recordLength = limit - pos;
+				pos = limit;
+				return true;
+			}
+			scan += pos;
+		}
+	}
+
+	private boolean nextLengthPrefixed() throws IOException {
+		while (limit - pos < 4) {
+			if (!fill()) {
+				if (pos == limit) {
+					return false;
+				}
+				throw new EOFException("Truncated record length");
+			}
+		}
+		int len = ((buffer[pos] & 0xff) << 24) | ((buffer[pos + 1] & 0xff) << 16)
+				| ((buffer[pos + 2] & 0xff) << 8) | (buffer[pos + 3] & 0xff);
+		if (len < 0) {
+			throw new IOException("Invalid record length: " + len);
+		}
+		while (limit - pos - 4 < len) {
+			if (!fill()) {
+				throw new EOFException("Truncated record");
+			}
+		}
+		recordOffset = pos + 4;
+		recordLength = len;
+		pos = recordOffset + len;
+		return true;
+	}
+
+	/*
+	 * Moves unread bytes to start of buffer, growing it if it is full, and reads more bytes after
+	 * them. Returns false at end of stream.
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buffer.length) {
+			// record is larger than buffer
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if (n == -1) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class pools raw (nowrap) Inflater and Deflater objects and scratch buffers of BUFFER_SIZE
+ * bytes, so that short lived readers and writers do not pay for native zlib initialization and
+ * teardown, or for garbage collection of large buffers. Readers and writers of this package borrow
+ * from shared instance and return when they are closed; objects of a stream which is never closed
+ * are simply garbage collected.
+ *
+ * Pool is bounded: every kind keeps at most maxIdle idle objects, and objects returned to a full
+ * pool are released (end() for Inflater and Deflater). Limit of shared instance defaults to 4 times
+ * number of processors and can be set using system property "gzinga.pool.size". Limit of 0
+ * disables pooling.
+ */
+public class GZipResourcePool {
+
+	public static final String MAX_IDLE_PROPERTY = "gzinga.pool.size";
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final GZipResourcePool shared = new GZipResourcePool(
+			Integer.getInteger(MAX_IDLE_PROPERTY, 4 * Runtime.getRuntime().availableProcessors()));
+
+	private final int maxIdle;
+	private final Pool<Inflater> inflaters = new Pool<Inflater>();
+	private final Pool<Deflater> deflaters = new Pool<Deflater>();
+	private final Pool<byte[]> buffers = new Pool<byte[]>();
+
+	public GZipResourcePool(int maxIdle) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("maxIdle < 0");
+		}
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return pool used by all readers and writers in this process
+	 */
+	public static GZipResourcePool getShared() {
+		return shared;
+	}
+
+	/**
+	 * @return raw Inflater in its initial state
+	 */
+	public Inflater borrowInflater() {
+		Inflater inf = inflaters.poll();
+		return inf != null ? inf : new Inflater(true);
+	}
+
+	/**
+	 * Returns Inflater obtained from borrowInflater. It should not be used by caller afterwards.
+	 * @param inf may be null
+	 */
+	public void returnInflater(Inflater inf) {
+		if (inf == null) {
+			return;
+		}
+		inf.reset();
+		if (!inflaters.offer(inf)) {
+			inf.end();
+		}
+	}
+
+	/**
+	 * @param level
+	 * @param strategy
+	 * @return raw Deflater in its initial state with given level and strategy
+	 */
+	public Deflater borrowDeflater(int level, int strategy) {
+		Deflater def = deflaters.poll();
+		if (def == null) {
+			def = new Deflater(level, true);
+		} else {
+			def.setLevel(level);
+		}
+		def.setStrategy(strategy);
+		return def;
+	}
+
+	/**
+	 * Returns Deflater obtained from borrowDeflater. It should not be used by caller afterwards.
+	 * @param def may be null
+	 */
+	public void returnDeflater(Deflater def) {
+		if (def == null) {
+			return;
+		}
+		def.reset();
+		if (!deflaters.offer(def)) {
+			def.end();
+		}
+	}
+
+	/**
+	 * @return buffer of BUFFER_SIZE bytes with undefined content
+	 */
+	public byte[] borrowBuffer() {
+		byte[] buf = buffers.poll();
+		return buf != null ? buf : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * @param size
+	 * @return pooled buffer if size is BUFFER_SIZE, new buffer of given size otherwise
+	 */
+	public byte[] borrowBuffer(int size) {
+		return size == BUFFER_SIZE ? borrowBuffer() : new byte[size];
+	}
+
+	/**
+	 * Returns buffer obtained from borrowBuffer. Buffers of any other size are ignored.
+	 * @param buf may be null
+	 */
+	public void returnBuffer(byte[] buf) {
+		if (buf != null && buf.length == BUFFER_SIZE) {
+			buffers.offer(buf);
+		}
+	}
+
+	/*
+	 * Bounded lock free queue of idle objects. Size is only approximate while objects are being
+	 * offered concurrently, which is good enough for a bound.
+	 */
+	private final class Pool<T> {
+		private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		T poll() {
+			T t = idle.poll();
+			if (t != null) {
+				size.decrementAndGet();
+			}
+			return t;
+		}
+
+		boolean offer(T t) {
+			if (size.incrementAndGet() > maxIdle) {
+				size.decrementAndGet();
+				return false;
+			}
+			idle.offer(t);
+			return true;
+		}
+	}
+}
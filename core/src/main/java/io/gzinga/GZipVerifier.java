@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class checks integrity of a whole file written using GZipOutputStreamRandomAccess, without
+ * returning its data. File is divided into segments at member offsets of its metadata, as for
+ * GZipParallelInputStream, and segments are inflated at same time on a pool of threads. Each reads
+ * file with positioned reads through its own SeekableCursor, so compressed bytes are not held in
+ * memory. CRC32 and ISIZE of every member are compared with its trailer by GZipMemberInputStream.
+ *
+ * Damage in a segment is reported once, with keys which point to start of segment. Rest of that
+ * segment is not checked, since start of next member can not be known after damaged data.
+ */
+public final class GZipVerifier {
+
+	private GZipVerifier() {
+	}
+
+	/**
+	 * This class describes a segment of file which could not be verified.
+	 */
+	public static final class BadMember {
+		private final long segmentStart;
+		private final long memberStart;
+		private final long[] keys;
+		private final IOException error;
+
+		BadMember(long segmentStart, long memberStart, long[] keys, IOException error) {
+			this.segmentStart = segmentStart;
+			this.memberStart = memberStart;
+			this.keys = keys;
+			this.error = error;
+		}
+
+		/**
+		 * @return position in compressed file of segment, i.e. offset of its keys
+		 */
+		public long getSegmentStart() {
+			return segmentStart;
+		}
+
+		/**
+		 * @return position in compressed file of member where damage was found
+		 */
+		public long getMemberStart() {
+			return memberStart;
+		}
+
+		/**
+		 * @return keys of default dimension which point to start of segment, in increasing order.
+		 * Empty if segment is at start of file and has no key.
+		 */
+		public long[] getKeys() {
+			return keys.clone();
+		}
+
+		/**
+		 * @return error found while reading member
+		 */
+		public IOException getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return "keys " + Arrays.toString(keys) + " at " + memberStart + ": " + error.getMessage();
+		}
+	}
+
+	/**
+	 * Verifies given file using one thread per available processor.
+	 * @param gzipFile
+	 * @return damaged segments in file order, empty if file is intact
+	 * @throws IOException
+	 */
+	public static List<BadMember> verify(File gzipFile) throws IOException {
+		SeekableRandomAccessFile in = new SeekableRandomAccessFile(gzipFile);
+		try {
+			return verify(in, Runtime.getRuntime().availableProcessors());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Verifies file of given stream using given number of threads. Stream is not closed.
+	 * @param in
+	 * @param threads
+	 * @return damaged segments in file order, empty if file is intact
+	 * @throws IOException
+	 */
+	public static List<BadMember> verify(SeekableInputStream in, int threads) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("gzinga-verifier"));
+		try {
+			return verify(in, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Verifies file of given stream by submitting a task per segment to given executor, e.g. one
+	 * shared by verification of many files. Stream is not closed and executor is not shut down.
+	 * @param in
+	 * @param executor
+	 * @return damaged segments in file order, empty if file is intact
+	 * @throws IOException
+	 */
+	public static List<BadMember> verify(SeekableInputStream in, ExecutorService executor)
+			throws IOException {
+		InputStreamConverter converter = new InputStreamConverter(new SeekableCursor(in), true);
+		OffsetIndex index = converter.getIndex();
+		converter.close();
+		return verify(in, index, executor);
+	}
+
+	static List<BadMember> verify(final SeekableInputStream in, OffsetIndex index,
+			ExecutorService executor) throws IOException {
+		long end = index.getDataLength() == -1 ? in.getLen() : index.getDataLength();
+		long[] offsets = index.sortedOffsets();
+		long[] bounds = new long[offsets.length + 2];
+		int n = 0;
+		bounds[n++] = 0;
+		for (long offset : offsets) {
+			if (offset > bounds[n - 1] && offset < end) {
+				bounds[n++] = offset;
+			}
+		}
+		bounds[n++] = end;
+		Map<Long, long[]> keysByOffset = keysByOffset(index);
+		List<Future<BadMember>> tasks = new ArrayList<Future<BadMember>>(n - 1);
+		try {
+			for (int i = 0; i < n - 1; i++) {
+				final long start = bounds[i];
+				final long limit = bounds[i + 1];
+				final long[] keys = keysByOffset.containsKey(start) ? keysByOffset.get(start)
+						: new long[0];
+				tasks.add(executor.submit(new Callable<BadMember>() {
+					@Override
+					public BadMember call() throws IOException {
+						return verifySegment(in, start, limit, keys);
+					}
+				}));
+			}
+			List<BadMember> result = new ArrayList<BadMember>();
+			for (Future<BadMember> task : tasks) {
+				BadMember bad = get(task);
+				if (bad != null) {
+					result.add(bad);
+				}
+			}
+			return result;
+		} finally {
+			for (Future<BadMember> task : tasks) {
+				task.cancel(true);
+			}
+		}
+	}
+
+	/*
+	 * Inflates members of segment and returns damage found in it, or null if it is intact.
+	 */
+	private static BadMember verifySegment(SeekableInputStream in, long start, long limit, long[] keys)
+			throws IOException {
+		SeekableCursor cursor = new SeekableCursor(in);
+		cursor.seek(start);
+		GZipMemberInputStream gzin = new GZipMemberInputStream(cursor);
+		gzin.setLimit(limit);
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		byte[] buf = pool.borrowBuffer();
+		try {
+			try {
+				while (gzin.read(buf, 0, buf.length) != -1) {
+					if (Thread.interrupted()) {
+						throw new InterruptedIOException("Interrupted while verifying segment");
+					}
+				}
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				return new BadMember(start, gzin.getMemberStart(), keys, e);
+			}
+			if (gzin.getMemberStart() != limit) {
+				// reader stops at anything which is not a member header
+				return new BadMember(start, gzin.getMemberStart(), keys,
+						new IOException("Not a member header at " + gzin.getMemberStart()));
+			}
+			return null;
+		} finally {
+			pool.returnBuffer(buf);
+			gzin.close();
+		}
+	}
+
+	/*
+	 * Returns keys of default dimension by their offset.
+	 */
+	private static Map<Long, long[]> keysByOffset(OffsetIndex index) {
+		Map<Long, long[]> keys = new HashMap<Long, long[]>();
+		for (int i = 0; i < index.size(); i++) {
+			long[] k = keys.get(index.getOffset(i));
+			k = k == null ? new long[1] : Arrays.copyOf(k, k.length + 1);
+			k[k.length - 1] = index.getKey(i);
+			keys.put(index.getOffset(i), k);
+		}
+		for (long[] k : keys.values()) {
+			Arrays.sort(k);
+		}
+		return keys;
+	}
+
+	private static BadMember get(Future<BadMember> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while verifying segment");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error in verifying segment", e.getCause());
+		}
+	}
+}
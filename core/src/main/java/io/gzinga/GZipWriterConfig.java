@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.util.zip.Deflater;
+
+/**
+ * This class holds compression settings of writers, i.e. GZipOutputStreamRandomAccess,
+ * GZipParallelOutputStreamRandomAccess and GZipConcurrentAppender. Setters return this object, so
+ * settings can be chained:
+ *
+ *     new GZipWriterConfig().setLevel(Deflater.BEST_COMPRESSION).setStrategy(Deflater.FILTERED)
+ *
+ * Priming with dictionary applies to blocks of one member, which are compressed separately by
+ * parallel writer. Members are never primed with data of previous member, as every member should be
+ * readable on its own.
+ *
+ * If adaptive is set, writers which compress in background (parallel writer and concurrent appender)
+ * use minLevel instead of level while compression falls behind producers, i.e. while their queue of
+ * pending blocks or members is full.
+ *
+ * If checkpointInterval is set, GZipOutputStreamRandomAccess writes keys added so far into file
+ * every checkpointInterval keys (see GZipIndexRecovery), and with syncCheckpoints forces file to
+ * disk after each checkpoint.
+ *
+ * If recordDelimiter is set, GZipOutputStreamRandomAccess counts records of data of every key as
+ * number of delimiter bytes written, e.g. '\n' for lines, and stores counts in metadata.
+ */
+public class GZipWriterConfig {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int strategy = Deflater.DEFAULT_STRATEGY;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private boolean primeDictionary = true;
+	private boolean adaptive = false;
+	private int minLevel = Deflater.BEST_SPEED;
+	private int checkpointInterval = 0;
+	private boolean syncCheckpoints = true;
+	private int recordDelimiter = -1;
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param level compression level, from Deflater.NO_COMPRESSION to Deflater.BEST_COMPRESSION, or
+	 * Deflater.DEFAULT_COMPRESSION
+	 * @return
+	 */
+	public GZipWriterConfig setLevel(int level) {
+		this.level = checkLevel(level);
+		return this;
+	}
+
+	public int getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or Deflater.HUFFMAN_ONLY
+	 * @return
+	 */
+	public GZipWriterConfig setStrategy(int strategy) {
+		if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+				&& strategy != Deflater.HUFFMAN_ONLY) {
+			throw new IllegalArgumentException("Invalid strategy: " + strategy);
+		}
+		this.strategy = strategy;
+		return this;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @param bufferSize size of output buffer of deflater
+	 * @return
+	 */
+	public GZipWriterConfig setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size <= 0");
+		}
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	public boolean isPrimeDictionary() {
+		return primeDictionary;
+	}
+
+	/**
+	 * @param primeDictionary whether a block of a member is primed with last 32 KB of previous block
+	 * of same member. Without it blocks compress worse but independently of each other.
+	 * @return
+	 */
+	public GZipWriterConfig setPrimeDictionary(boolean primeDictionary) {
+		this.primeDictionary = primeDictionary;
+		return this;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public GZipWriterConfig setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+		return this;
+	}
+
+	public int getMinLevel() {
+		return minLevel;
+	}
+
+	/**
+	 * @param minLevel compression level used while compression falls behind, if adaptive is set
+	 * @return
+	 */
+	public GZipWriterConfig setMinLevel(int minLevel) {
+		this.minLevel = checkLevel(minLevel);
+		return this;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * @param checkpointInterval number of keys after which writer writes a checkpoint of metadata,
+	 * or 0 to write metadata only when stream is closed
+	 * @return
+	 */
+	public GZipWriterConfig setCheckpointInterval(int checkpointInterval) {
+		if (checkpointInterval < 0) {
+			throw new IllegalArgumentException("Checkpoint interval < 0");
+		}
+		this.checkpointInterval = checkpointInterval;
+		return this;
+	}
+
+	public boolean isSyncCheckpoints() {
+		return syncCheckpoints;
+	}
+
+	/**
+	 * @param syncCheckpoints whether file is forced to disk after each checkpoint. This applies
+	 * to writers of a FileOutputStream, other streams are only flushed.
+	 * @return
+	 */
+	public GZipWriterConfig setSyncCheckpoints(boolean syncCheckpoints) {
+		this.syncCheckpoints = syncCheckpoints;
+		return this;
+	}
+
+	public int getRecordDelimiter() {
+		return recordDelimiter;
+	}
+
+	/**
+	 * @param recordDelimiter byte which ends every record, e.g. '\n', or -1 to not count records
+	 * @return
+	 */
+	public GZipWriterConfig setRecordDelimiter(int recordDelimiter) {
+		if (recordDelimiter < -1 || recordDelimiter > 0xff) {
+			throw new IllegalArgumentException("Invalid record delimiter: " + recordDelimiter);
+		}
+		this.recordDelimiter = recordDelimiter;
+		return this;
+	}
+
+	GZipWriterConfig copy() {
+		GZipWriterConfig c = new GZipWriterConfig();
+		c.level = level;
+		c.strategy = strategy;
+		c.bufferSize = bufferSize;
+		c.primeDictionary = primeDictionary;
+		c.adaptive = adaptive;
+		c.minLevel = minLevel;
+		c.checkpointInterval = checkpointInterval;
+		c.syncCheckpoints = syncCheckpoints;
+		c.recordDelimiter = recordDelimiter;
+		return c;
+	}
+
+	/**
+	 * @param behind whether compression falls behind producers
+	 * @return compression level to use for next block or member
+	 */
+	int levelFor(boolean behind) {
+		return adaptive && behind ? minLevel : level;
+	}
+
+	/**
+	 * @param level
+	 * @return raw Deflater from shared GZipResourcePool with given level and strategy of this
+	 * configuration, which should be returned to pool after use
+	 */
+	Deflater newDeflater(int level) {
+		return GZipResourcePool.getShared().borrowDeflater(level, strategy);
+	}
+
+	static int checkLevel(int level) {
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				&& level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		return level;
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class finds member headers written by GZipOutputStreamRandomAccess in compressed data, e.g.
+ * to find first member of a split or metadata of files written by earlier versions.
+ *
+ * Search uses skip table of Boyer-Moore-Horspool algorithm, so most bytes of compressed data are not
+ * compared at all. Header is matched without its OS byte, so files written on any platform are found.
+ * Compressed bytes which only look like a header are rejected by validating candidate: its comment
+ * should be printable and data following it should inflate without error.
+ */
+public final class HeaderLocator {
+
+	/**
+	 * First 9 bytes of header (all except OS byte), i.e. magic number, compression method, FLG with
+	 * FCOMMENT set, MTIME and XFL of zero.
+	 */
+	static final byte[] HEADER_PREFIX;
+	private static final int[] HEADER_SHIFTS;
+
+	/*
+	 * Size of header with OS byte, before comment.
+	 */
+	private static final int HEADER_SIZE = 10;
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+	/*
+	 * Number of bytes after candidate which are needed for its validation.
+	 */
+	private static final int VALIDATION_SIZE = 4 * 1024;
+
+	static {
+		HEADER_PREFIX = new byte[InputStreamConverter.headerbytes.length - 1];
+		System.arraycopy(InputStreamConverter.headerbytes, 0, HEADER_PREFIX, 0, HEADER_PREFIX.length);
+		HEADER_SHIFTS = shifts(HEADER_PREFIX);
+	}
+
+	private HeaderLocator() {
+	}
+
+	/**
+	 * Finds first header prefix which starts at or after from and ends before to. Candidate is
+	 * not validated.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return absolute index in buffer where header starts, or -1 if there is none
+	 */
+	public static int indexOf(ByteBuffer buf, int from, int to) {
+		return indexOf(buf, HEADER_PREFIX, HEADER_SHIFTS, from, to);
+	}
+
+	/**
+	 * Finds last header prefix which starts at or after from and ends before to. Candidate is
+	 * not validated.
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return absolute index in buffer where header starts, or -1 if there is none
+	 */
+	public static int lastIndexOf(ByteBuffer buf, int from, int to) {
+		return lastIndexOf(buf, HEADER_PREFIX, from, to);
+	}
+
+	/**
+	 * Finds first valid header between from and to (see isValidHeader).
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return absolute index in buffer where header starts, or -1 if there is none
+	 */
+	public static int findHeader(ByteBuffer buf, int from, int to) {
+		int i = from;
+		while ((i = indexOf(buf, i, to)) != -1) {
+			if (isValidHeader(buf, i, to)) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds last valid header between from and to (see isValidHeader).
+	 * @param buf
+	 * @param from
+	 * @param to
+	 * @return absolute index in buffer where header starts, or -1 if there is none
+	 */
+	public static int findLastHeader(ByteBuffer buf, int from, int to) {
+		int end = to;
+		int i;
+		while ((i = lastIndexOf(buf, from, end)) != -1) {
+			if (isValidHeader(buf, i, to)) {
+				return i;
+			}
+			end = i + HEADER_PREFIX.length - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds first valid header at or after given position in stream.
+	 * @param in
+	 * @param from
+	 * @return position of header, or end of stream if there is none
+	 * @throws IOException
+	 */
+	public static long findHeader(SeekableInputStream in, long from) throws IOException {
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		byte[] bytes = pool.borrowBuffer(SCAN_BUFFER_SIZE);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		long position = from;
+		try {
+			while (true) {
+				in.seek(position);
+				int len = readFully(in, bytes);
+				boolean eof = len < bytes.length;
+				int next = len - (HEADER_PREFIX.length - 1);
+				int i = 0;
+				while ((i = indexOf(buf, i, len)) != -1) {
+					if (!eof && len - i < VALIDATION_SIZE) {
+						// not enough bytes to validate candidate, read again starting from it
+						next = i;
+						break;
+					}
+					if (isValidHeader(buf, i, len)) {
+						return position + i;
+					}
+					i++;
+				}
+				if (eof) {
+					return position + len;
+				}
+				position += next;
+			}
+		} finally {
+			pool.returnBuffer(bytes);
+		}
+	}
+
+	/**
+	 * Checks whether header prefix at given index is a member header. Comment should be printable
+	 * text terminated by zero, and compressed data after it should inflate without error. Candidate
+	 * which can not be disproved with bytes before limit is valid.
+	 * @param buf
+	 * @param pos index of header prefix
+	 * @param limit end of available bytes
+	 * @return
+	 */
+	public static boolean isValidHeader(ByteBuffer buf, int pos, int limit) {
+		int p = pos + HEADER_SIZE;
+		while (p < limit) {
+			int b = buf.get(p) & 0xff;
+			if (b == 0) {
+				break;
+			}
+			if (b < 0x20 || b > 0x7e) {
+				return false;
+			}
+			p++;
+		}
+		p++;
+		if (p >= limit) {
+			return true;
+		}
+		int len = Math.min(limit - p, VALIDATION_SIZE);
+		byte[] input;
+		int off;
+		if (buf.hasArray()) {
+			input = buf.array();
+			off = buf.arrayOffset() + p;
+		} else {
+			input = new byte[len];
+			off = 0;
+			for (int i = 0; i < len; i++) {
+				input[i] = buf.get(p + i);
+			}
+		}
+		GZipResourcePool pool = GZipResourcePool.getShared();
+		Inflater inf = pool.borrowInflater();
+		byte[] out = pool.borrowBuffer();
+		try {
+			inf.setInput(input, off, len);
+			while (!inf.finished() && !inf.needsInput()) {
+				inf.inflate(out);
+				if (inf.needsDictionary()) {
+					return false;
+				}
+			}
+			return true;
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			pool.returnInflater(inf);
+			pool.returnBuffer(out);
+		}
+	}
+
+	/**
+	 * Finds first occurrence of pattern which starts at or after from and ends before to.
+	 * @return absolute index in buffer, or -1 if there is none
+	 */
+	static int indexOf(ByteBuffer buf, byte[] pattern, int from, int to) {
+		return indexOf(buf, pattern, shifts(pattern), from, to);
+	}
+
+	/**
+	 * Finds last occurrence of pattern which starts at or after from and ends before to.
+	 * @return absolute index in buffer, or -1 if there is none
+	 */
+	static int lastIndexOf(ByteBuffer buf, byte[] pattern, int from, int to) {
+		int m = pattern.length;
+		if (m == 0) {
+			return to;
+		}
+		// Horspool from the right, with shifts by first occurrence in pattern
+		int[] shifts = new int[256];
+		for (int i = 0; i < 256; i++) {
+			shifts[i] = m;
+		}
+		for (int i = m - 1; i > 0; i--) {
+			shifts[pattern[i] & 0xff] = i;
+		}
+		int i = to - m;
+		while (i >= from) {
+			int j = 0;
+			while (j < m && buf.get(i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == m) {
+				return i;
+			}
+			i -= shifts[buf.get(i) & 0xff];
+		}
+		return -1;
+	}
+
+	private static int indexOf(ByteBuffer buf, byte[] pattern, int[] shifts, int from, int to) {
+		int m = pattern.length;
+		if (m == 0) {
+			return from;
+		}
+		int last = m - 1;
+		int i = from;
+		while (i + m <= to) {
+			int j = last;
+			while (j >= 0 && buf.get(i + j) == pattern[j]) {
+				j--;
+			}
+			if (j < 0) {
+				return i;
+			}
+			i += shifts[buf.get(i + last) & 0xff];
+		}
+		return -1;
+	}
+
+	/*
+	 * Skip table of Horspool algorithm, i.e. distance from last occurrence of every byte in pattern
+	 * (except last byte) to end of pattern.
+	 */
+	private static int[] shifts(byte[] pattern) {
+		int m = pattern.length;
+		int[] shifts = new int[256];
+		for (int i = 0; i < 256; i++) {
+			shifts[i] = m;
+		}
+		for (int i = 0; i < m - 1; i++) {
+			shifts[pattern[i] & 0xff] = m - 1 - i;
+		}
+		return shifts;
+	}
+
+	private static int readFully(SeekableInputStream in, byte[] buf) throws IOException {
+		int total = 0;
+		while (total < buf.length) {
+			int n = in.read(buf, total, buf.length - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This class writes and reads binary metadata information which is stored once at end of file.
+ *
+ * Metadata is encoded as a sequence of sections, each one being a tag byte, length and content, so
+ * newer sections can be added without breaking older readers. Key and offset pairs are delta and
+ * varint encoded. Uncompressed offsets of members, if known for all keys, are stored in a separate
+ * section along with total uncompressed length, and record counts and ranges of record keys, if
+ * writer knew them, in another one. Every named key dimension is stored in a section of its own, as
+ * its name followed by key and offset pairs. Encoded bytes are stored in extra field (FEXTRA,
+ * subfield 'G','X') of one or more empty gzip members, followed by a fixed size locator member
+ * (subfield 'G','I') which gives start offset, length and CRC of encoded bytes. All of these are
+ * valid gzip members without any data, so file can still be read with any gzip reader, and reader
+ * can find metadata by reading last LOCATOR_SIZE bytes of file.
+ *
+ * Writers can also write checkpoints in between data members, in same form. Checkpoint holds only
+ * keys added since previous checkpoint and has a checkpoint section with location of locator of
+ * previous checkpoint, so complete metadata up to any checkpoint is found by following the chain.
+ */
+final class IndexFooter {
+
+	static final int FORMAT_VERSION = 1;
+	static final int LOCATOR_SIZE = 50;
+
+	static final int SECTION_END = 0;
+	static final int SECTION_OFFSETS = 1;
+	static final int SECTION_UNCOMPRESSED = 2;
+	static final int SECTION_DIMENSION = 3;
+	static final int SECTION_CHECKPOINT = 4;
+	static final int SECTION_RECORDS = 5;
+
+	/**
+	 * Previous checkpoint of first checkpoint of a chain.
+	 */
+	static final long NO_CHECKPOINT = -1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int FEXTRA = 4;
+	private static final int OS_UNKNOWN = 255;
+	private static final int MAX_CHUNK = 0xffff - 4;
+	private static final int MEMBER_HEADER_SIZE = 16;
+	/*
+	 * Empty final deflate block followed by CRC and size of zero bytes.
+	 */
+	private static final byte[] EMPTY_BODY = new byte[] {3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private IndexFooter() {
+	}
+
+	/**
+	 * Writes metadata members and locator into provided stream.
+	 * @param out stream positioned at end of last data member
+	 * @param indexStart byte offset in file where metadata members start
+	 * @param offsetIndex metadata information
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	static long write(OutputStream out, long indexStart, OffsetIndex offsetIndex) throws IOException {
+		return write(out, indexStart, encode(offsetIndex));
+	}
+
+	/**
+	 * Writes checkpoint with keys added since previous checkpoint into provided stream.
+	 * @param out stream positioned at end of a data member
+	 * @param indexStart byte offset in file where checkpoint starts
+	 * @param delta keys added since previous checkpoint, and total uncompressed length
+	 * @param previous location of locator of previous checkpoint, or NO_CHECKPOINT
+	 * @return number of bytes written, of which last LOCATOR_SIZE bytes are locator
+	 * @throws IOException
+	 */
+	static long writeCheckpoint(OutputStream out, long indexStart, OffsetIndex delta, long previous)
+			throws IOException {
+		return write(out, indexStart, encode(delta, true, previous));
+	}
+
+	private static long write(OutputStream out, long indexStart, byte[] payload) throws IOException {
+		long written = 0;
+		int pos = 0;
+		do {
+			int len = Math.min(MAX_CHUNK, payload.length - pos);
+			byte[] header = memberHeader(len + 4);
+			header[12] = 'G';
+			header[13] = 'X';
+			writeShort(len, header, 14);
+			out.write(header);
+			out.write(payload, pos, len);
+			out.write(EMPTY_BODY);
+			written += header.length + len + EMPTY_BODY.length;
+			pos += len;
+		} while (pos < payload.length);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		byte[] locator = new byte[LOCATOR_SIZE];
+		System.arraycopy(memberHeader(28), 0, locator, 0, MEMBER_HEADER_SIZE);
+		locator[12] = 'G';
+		locator[13] = 'I';
+		writeShort(24, locator, 14);
+		writeLong(indexStart, locator, 16);
+		writeLong(payload.length, locator, 24);
+		writeInt((int) crc.getValue(), locator, 32);
+		writeInt(FORMAT_VERSION, locator, 36);
+		System.arraycopy(EMPTY_BODY, 0, locator, 40, EMPTY_BODY.length);
+		out.write(locator);
+		return written + locator.length;
+	}
+
+	/**
+	 * Reads metadata information written by write method. Returns null if file does not end with
+	 * locator member. File pointer position is not restored.
+	 * @param raf
+	 * @return metadata information or null
+	 * @throws IOException
+	 */
+	static OffsetIndex read(SeekableInputStream raf) throws IOException {
+		long len = raf.getLen();
+		if (len < LOCATOR_SIZE) {
+			return null;
+		}
+		return readAt(raf, len - LOCATOR_SIZE);
+	}
+
+	/**
+	 * Reads metadata information whose locator member is at given location. If it is a checkpoint,
+	 * keys of all previous checkpoints are merged into it. Data length of returned metadata is
+	 * location where metadata members start. File pointer position is not restored.
+	 * @param raf
+	 * @param locatorStart
+	 * @return metadata information, or null if there is no locator member at given location
+	 * @throws IOException if metadata is corrupt
+	 */
+	static OffsetIndex readAt(SeekableInputStream raf, long locatorStart) throws IOException {
+		long[] start = new long[1];
+		byte[] payload = readPayload(raf, locatorStart, start);
+		if (payload == null) {
+			return null;
+		}
+		long dataLength = start[0];
+		long checkpoint = checkpointOf(payload);
+		if (checkpoint < NO_CHECKPOINT) {
+			OffsetIndex offsetIndex = decode(payload);
+			offsetIndex.setDataLength(dataLength);
+			return offsetIndex;
+		}
+		// collect chain from newest to oldest, and merge from oldest so that newer keys win
+		List<byte[]> chain = new ArrayList<byte[]>();
+		chain.add(payload);
+		while (checkpoint != NO_CHECKPOINT) {
+			payload = readPayload(raf, checkpoint, start);
+			if (payload == null) {
+				throw new ZipException("Missing checkpoint at " + checkpoint);
+			}
+			chain.add(payload);
+			checkpoint = checkpointOf(payload);
+			if (checkpoint < NO_CHECKPOINT) {
+				// complete metadata, e.g. of file before it was appended to
+				break;
+			}
+		}
+		OffsetIndex offsetIndex = new OffsetIndex();
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			OffsetIndex delta = decode(chain.get(i));
+			offsetIndex.putAll(delta);
+			offsetIndex.setUncompressedLength(delta.getUncompressedLength());
+		}
+		offsetIndex.setDataLength(dataLength);
+		return offsetIndex;
+	}
+
+	/**
+	 * @param buf
+	 * @param pos
+	 * @param limit end of valid bytes in buffer
+	 * @return true if locator member header starts at given index of buffer
+	 */
+	static boolean isLocator(byte[] buf, int pos, int limit) {
+		if (limit - pos < MEMBER_HEADER_SIZE) {
+			return false;
+		}
+		byte[] expected = memberHeader(28);
+		for (int i = 0; i < 12; i++) {
+			if (buf[pos + i] != expected[i]) {
+				return false;
+			}
+		}
+		return buf[pos + 12] == 'G' && buf[pos + 13] == 'I' && readShort(buf, pos + 14) == 24;
+	}
+
+	/*
+	 * Reads and verifies encoded metadata of locator at given location, and stores start of its
+	 * metadata members into start[0]. Returns null if there is no locator.
+	 */
+	private static byte[] readPayload(SeekableInputStream raf, long locatorStart, long[] start)
+			throws IOException {
+		long len = raf.getLen();
+		if (locatorStart < 0 || locatorStart + LOCATOR_SIZE > len) {
+			return null;
+		}
+		byte[] locator = new byte[LOCATOR_SIZE];
+		raf.seek(locatorStart);
+		readFully(raf, locator, 0, locator.length);
+		if (!isMemberHeader(locator, 28, 'G', 'I') || readShort(locator, 14) != 24) {
+			return null;
+		}
+		for (int i = 0; i < EMPTY_BODY.length; i++) {
+			if (locator[40 + i] != EMPTY_BODY[i]) {
+				return null;
+			}
+		}
+		long indexStart = readLong(locator, 16);
+		long payloadLength = readLong(locator, 24);
+		if (indexStart < 0 || payloadLength < 0 || indexStart + payloadLength > locatorStart) {
+			throw new ZipException("Corrupt metadata locator");
+		}
+		byte[] payload = new byte[(int) payloadLength];
+		raf.seek(indexStart);
+		byte[] header = new byte[MEMBER_HEADER_SIZE];
+		int pos = 0;
+		do {
+			readFully(raf, header, 0, header.length);
+			int chunk = readShort(header, 14);
+			if (!isMemberHeader(header, chunk + 4, 'G', 'X') || pos + chunk > payload.length) {
+				throw new ZipException("Corrupt metadata member");
+			}
+			readFully(raf, payload, pos, chunk);
+			pos += chunk;
+			readFully(raf, header, 0, EMPTY_BODY.length);
+		} while (pos < payload.length);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		if ((int) crc.getValue() != readInt(locator, 32)) {
+			throw new ZipException("Metadata CRC mismatch");
+		}
+		start[0] = indexStart;
+		return payload;
+	}
+
+	/*
+	 * Returns location of previous checkpoint stored in checkpoint section, or a value less than
+	 * NO_CHECKPOINT if encoded metadata is not a checkpoint.
+	 */
+	private static long checkpointOf(byte[] payload) throws IOException {
+		Cursor c = new Cursor(payload, 1, payload.length);
+		while (true) {
+			int tag = c.readByte();
+			if (tag == SECTION_END) {
+				return NO_CHECKPOINT - 1;
+			}
+			int len = (int) c.readVarLong();
+			if (tag == SECTION_CHECKPOINT) {
+				return unZigZag(new Cursor(payload, c.pos, c.pos + len).readVarLong());
+			}
+			c.pos += len;
+		}
+	}
+
+	static byte[] encode(OffsetIndex offsetIndex) {
+		return encode(offsetIndex, false, NO_CHECKPOINT);
+	}
+
+	private static byte[] encode(OffsetIndex offsetIndex, boolean checkpoint, long previous) {
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		writeOffsets(offsetIndex, section);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(section.size() * 3 / 2 + 16);
+		bos.write(FORMAT_VERSION);
+		writeSection(SECTION_OFFSETS, section, bos);
+		if (checkpoint) {
+			section.reset();
+			writeVarLong(zigZag(previous), section);
+			writeSection(SECTION_CHECKPOINT, section, bos);
+		}
+		if (offsetIndex.hasUncompressedOffsets()) {
+			section.reset();
+			writeVarLong(offsetIndex.getUncompressedLength(), section);
+			long prev = 0;
+			for (int i = 0; i < offsetIndex.size(); i++) {
+				writeVarLong(zigZag(offsetIndex.getUncompressedOffset(i) - prev), section);
+				prev = offsetIndex.getUncompressedOffset(i);
+			}
+			writeSection(SECTION_UNCOMPRESSED, section, bos);
+		}
+		if (offsetIndex.hasRecordStats()) {
+			section.reset();
+			for (int i = 0; i < offsetIndex.size(); i++) {
+				writeVarLong(offsetIndex.getRecordCount(i) + 1, section);
+				long min = offsetIndex.getMinRecordKey(i);
+				long max = offsetIndex.getMaxRecordKey(i);
+				if (min <= max) {
+					section.write(1);
+					writeVarLong(zigZag(min - offsetIndex.getKey(i)), section);
+					writeVarLong(max - min, section);
+				} else {
+					section.write(0);
+				}
+			}
+			writeSection(SECTION_RECORDS, section, bos);
+		}
+		for (String name : offsetIndex.getDimensionNames()) {
+			section.reset();
+			byte[] bytes = name.getBytes(UTF_8);
+			writeVarLong(bytes.length, section);
+			section.write(bytes, 0, bytes.length);
+			writeOffsets(offsetIndex.getDimension(name), section);
+			writeSection(SECTION_DIMENSION, section, bos);
+		}
+		bos.write(SECTION_END);
+		return bos.toByteArray();
+	}
+
+	static OffsetIndex decode(byte[] payload) throws IOException {
+		OffsetIndex offsetIndex = null;
+		Cursor uncompressed = null;
+		Cursor records = null;
+		Map<String, OffsetIndex> dimensions = new LinkedHashMap<String, OffsetIndex>();
+		Cursor c = new Cursor(payload, 0, payload.length);
+		if (c.readByte() > FORMAT_VERSION) {
+			throw new ZipException("Unsupported metadata version");
+		}
+		while (true) {
+			int tag = c.readByte();
+			if (tag == SECTION_END) {
+				break;
+			}
+			int len = (int) c.readVarLong();
+			Cursor s = new Cursor(payload, c.pos, c.pos + len);
+			c.pos += len;
+			if (tag == SECTION_OFFSETS) {
+				offsetIndex = readOffsets(s);
+			} else if (tag == SECTION_UNCOMPRESSED) {
+				uncompressed = s;
+			} else if (tag == SECTION_RECORDS) {
+				records = s;
+			} else if (tag == SECTION_DIMENSION) {
+				int nameLength = (int) s.readVarLong();
+				if (nameLength < 0 || nameLength > s.end - s.pos) {
+					throw new ZipException("Truncated metadata");
+				}
+				String name = new String(payload, s.pos, nameLength, UTF_8);
+				s.pos += nameLength;
+				dimensions.put(name, readOffsets(s));
+			}
+		}
+		if (offsetIndex == null) {
+			throw new ZipException("Metadata without offsets");
+		}
+		for (Map.Entry<String, OffsetIndex> e : dimensions.entrySet()) {
+			offsetIndex.dimension(e.getKey()).putAll(e.getValue());
+		}
+		if (uncompressed != null) {
+			offsetIndex.setUncompressedLength(uncompressed.readVarLong());
+			long offset = 0;
+			for (int i = 0; i < offsetIndex.size(); i++) {
+				offset += unZigZag(uncompressed.readVarLong());
+				offsetIndex.setUncompressedOffset(i, offset);
+			}
+		}
+		if (records != null) {
+			for (int i = 0; i < offsetIndex.size(); i++) {
+				long count = records.readVarLong() - 1;
+				long min = Long.MAX_VALUE;
+				long max = Long.MIN_VALUE;
+				if (records.readByte() != 0) {
+					min = offsetIndex.getKey(i) + unZigZag(records.readVarLong());
+					max = min + records.readVarLong();
+				}
+				offsetIndex.setRecordStats(i, count, min, max);
+			}
+		}
+		return offsetIndex;
+	}
+
+	/*
+	 * Writes number of entries followed by delta encoded key and offset pairs.
+	 */
+	private static void writeOffsets(OffsetIndex offsetIndex, ByteArrayOutputStream section) {
+		writeVarLong(offsetIndex.size(), section);
+		long prevKey = 0;
+		long prevOffset = 0;
+		for (int i = 0; i < offsetIndex.size(); i++) {
+			writeVarLong(zigZag(offsetIndex.getKey(i) - prevKey), section);
+			writeVarLong(zigZag(offsetIndex.getOffset(i) - prevOffset), section);
+			prevKey = offsetIndex.getKey(i);
+			prevOffset = offsetIndex.getOffset(i);
+		}
+	}
+
+	private static OffsetIndex readOffsets(Cursor s) throws IOException {
+		int count = (int) s.readVarLong();
+		if (count < 0 || count > s.end - s.pos) {
+			throw new ZipException("Truncated metadata");
+		}
+		OffsetIndex offsetIndex = new OffsetIndex(count);
+		long key = 0;
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			key += unZigZag(s.readVarLong());
+			offset += unZigZag(s.readVarLong());
+			offsetIndex.put(key, offset);
+		}
+		return offsetIndex;
+	}
+
+	private static void writeSection(int tag, ByteArrayOutputStream section, ByteArrayOutputStream out) {
+		out.write(tag);
+		writeVarLong(section.size(), out);
+		byte[] bytes = section.toByteArray();
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static byte[] memberHeader(int xlen) {
+		byte[] header = new byte[MEMBER_HEADER_SIZE];
+		header[0] = (byte) GZIPInputStream.GZIP_MAGIC;
+		header[1] = (byte) (GZIPInputStream.GZIP_MAGIC >> 8);
+		header[2] = Deflater.DEFLATED;
+		header[3] = FEXTRA;
+		header[9] = (byte) OS_UNKNOWN;
+		writeShort(xlen, header, 10);
+		return header;
+	}
+
+	private static boolean isMemberHeader(byte[] buf, int xlen, char si1, char si2) {
+		byte[] expected = memberHeader(xlen);
+		for (int i = 0; i < 12; i++) {
+			if (buf[i] != expected[i]) {
+				return false;
+			}
+		}
+		return buf[12] == si1 && buf[13] == si2;
+	}
+
+	static void writeVarLong(long v, ByteArrayOutputStream out) {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void readFully(SeekableInputStream raf, byte[] buf, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = raf.read(buf, off, len);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static void writeShort(int s, byte[] buf, int offset) {
+		buf[offset] = (byte) (s & 0xff);
+		buf[offset + 1] = (byte) ((s >> 8) & 0xff);
+	}
+
+	private static void writeInt(int i, byte[] buf, int offset) {
+		writeShort(i & 0xffff, buf, offset);
+		writeShort((i >> 16) & 0xffff, buf, offset + 2);
+	}
+
+	private static void writeLong(long l, byte[] buf, int offset) {
+		writeInt((int) l, buf, offset);
+		writeInt((int) (l >> 32), buf, offset + 4);
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) | ((buf[offset + 1] & 0xff) << 8);
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return readShort(buf, offset) | (readShort(buf, offset + 2) << 16);
+	}
+
+	private static long readLong(byte[] buf, int offset) {
+		return (readInt(buf, offset) & 0xffffffffL) | ((long) readInt(buf, offset + 4) << 32);
+	}
+
+	/*
+	 * Reads varints from part of a byte array.
+	 */
+	static final class Cursor {
+		final byte[] buf;
+		int pos;
+		final int end;
+
+		Cursor(byte[] buf, int pos, int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		int readByte() throws IOException {
+			if (pos >= end) {
+				throw new ZipException("Truncated metadata");
+			}
+			return buf[pos++] & 0xff;
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new ZipException("Malformed varint in metadata");
+		}
+	}
+}
@@ -19,7 +19,7 @@ package io.gzinga;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.zip.Deflater;
@@ -31,7 +31,7 @@ import java.util.zip.GZIPInputStream;
  * */
 public class InputStreamConverter extends InputStream {
 	private SeekableInputStream raf;
-	private Map<Long, Long> offsetMap = new LinkedHashMap<Long, Long>();
+	private OffsetIndex offsetIndex = new OffsetIndex();
 
 	private static int readSize = 32 * 1024;
 	public static byte[] headerbytes = new byte[] {
@@ -78,6 +78,21 @@ public class InputStreamConverter extends InputStream {
 		}
 	}
 	
+	/**
+	 * Creates converter over a stream of file whose metadata is already loaded, e.g. a cursor over
+	 * same file. Header is not checked again.
+	 * @param gzipFile SeekableInputStream object
+	 * @param offsetIndex metadata information of file
+	 */
+	InputStreamConverter(SeekableInputStream gzipFile, OffsetIndex offsetIndex) {
+		raf = gzipFile;
+		this.offsetIndex = offsetIndex;
+	}
+
+	SeekableInputStream getSeekableInputStream() {
+		return raf;
+	}
+
 	public long getPos() throws IOException {
 		return raf.getPos();
 	}
@@ -110,11 +125,41 @@ public class InputStreamConverter extends InputStream {
 	}
 	
 	/**
-	 * Writes metadata information into Map.
+	 * Writes metadata information into Map. If stream has an identity, then metadata is first looked
+	 * up in OffsetIndexCache. Otherwise metadata is read from end of file if it is written in binary
+	 * form (see IndexFooter), or comment of last header is parsed.
 	 * @throws IOException
 	 */
 	private void storeMetadata() throws IOException {
-		long pos = 0;
+		String identity = raf.getIdentity();
+		OffsetIndexCache cache = OffsetIndexCache.getShared();
+		if (identity != null) {
+			OffsetIndex cached = cache.get(identity);
+			if (cached != null) {
+				offsetIndex = cached;
+				return;
+			}
+		}
+		long pos = raf.getPos();
+		OffsetIndex footer = IndexFooter.read(raf);
+		if (footer != null) {
+			offsetIndex = footer;
+		} else {
+			storeCommentMetadata();
+			offsetIndex.setDataLength(raf.getLen());
+		}
+		raf.seek(pos);
+		if (identity != null) {
+			cache.put(identity, offsetIndex);
+		}
+	}
+
+	/**
+	 * Writes metadata information from comment of last header into Map. This is the format written
+	 * by earlier versions, where every header carried complete metadata information.
+	 * @throws IOException
+	 */
+	private void storeCommentMetadata() throws IOException {
 		int position = 0;
 		int bytesToRead = readSize;
 		if (raf.getLen() < readSize) {
@@ -123,9 +168,10 @@ public class InputStreamConverter extends InputStream {
 		} else {
 			position = (int) (raf.getLen() - readSize);
 		}
+		// later reads are never longer than first one, so buffer is allocated once
+		byte[] bytes = new byte[bytesToRead];
 		while(true) {
 			raf.seek(position);
-			byte[] bytes = new byte[bytesToRead];
 			int lastIndex = 0;
 			int totalLen = 0;
 			while(true) {
@@ -137,7 +183,7 @@ public class InputStreamConverter extends InputStream {
 					break;
 				}
 			}
-			int headerIndex = lastIndexOf(bytes, headerbytes, 0, bytesToRead - 1);
+			int headerIndex = HeaderLocator.findLastHeader(ByteBuffer.wrap(bytes), 0, bytesToRead);
 			if(headerIndex == -1) {
 				if(position == 0) {
 					raf.seek(0);
@@ -173,8 +219,8 @@ public class InputStreamConverter extends InputStream {
 						continue;
 					}
 					try {
-						offsetMap.put(Long.valueOf(token.substring(0, index1)), 
-								Long.valueOf(token.substring(index1 + 1)));
+						offsetIndex.put(Long.parseLong(token.substring(0, index1)), 
+								Long.parseLong(token.substring(index1 + 1)));
 					} catch (Exception e) {
 						throw new IllegalArgumentException("Error in generating metadata", e);
 					}
@@ -182,53 +228,44 @@ public class InputStreamConverter extends InputStream {
 				break;
 			}
 		}
-		raf.seek(pos);
 	}
 
 	public Map<Long, Long> getMetadata() {
-		return this.offsetMap;
+		return this.offsetIndex.asMap();
+	}
+
+	public OffsetIndex getIndex() {
+		return this.offsetIndex;
 	}
 	
+	/**
+	 * Jumps to member of nearest key at or before specified key. If all keys are greater than
+	 * specified key, or key is null, then it jumps to beginning of file.
+	 * @param index
+	 * @throws IOException
+	 */
 	public void jumpToIndex(Long index) throws IOException {
-		Long offset = offsetMap.get(index);
-		if(offset != null) {
-			raf.seek(offset);
-		} else {
-			raf.seek(0);
-		}
+		long offset = index == null ? -1 : offsetIndex.floorOffset(index);
+		raf.seek(offset == -1 ? 0 : offset);
 	}
 	
+	/**
+	 * Finds last occurrence of dataToFind which lies between startIndex and endIndex (inclusive).
+	 * See HeaderLocator.
+	 * @return index where occurrence starts, or -1 if there is none
+	 */
 	public static int lastIndexOf(byte[] srcData, byte[] dataToFind, int startIndex, int endIndex) {
-        int iDataToFindLen = dataToFind.length;
-        int iMatchDataCntr = iDataToFindLen-1;
-        for (int counter = endIndex; counter >= startIndex; counter--) {
-            if (srcData[counter] == dataToFind[iMatchDataCntr]) {
-                iMatchDataCntr--;
-            } else {
-                iMatchDataCntr = iDataToFindLen-1;
-            }
-            if (iMatchDataCntr == 0) {
-                return counter-1;
-            } 
-        }
-        return -1;
-    }
+		return HeaderLocator.lastIndexOf(ByteBuffer.wrap(srcData), dataToFind, startIndex, endIndex + 1);
+	}
 	
+	/**
+	 * Finds first occurrence of dataToFind which lies between startIndex and endIndex (inclusive).
+	 * See HeaderLocator.
+	 * @return index where occurrence starts, or -1 if there is none
+	 */
 	public static int firstIndexOf(byte[] srcData, byte[] dataToFind, int startIndex, int endIndex) {
-        int iDataToFindLen = dataToFind.length;
-        int iMatchDataCntr = 0;
-        for (int counter = startIndex; counter <= endIndex; counter++) {
-            if (srcData[counter] == dataToFind[iMatchDataCntr]) {
-                iMatchDataCntr++;
-            } else {
-                iMatchDataCntr = 0;
-            }
-            if (iMatchDataCntr == iDataToFindLen) {
-                return counter - iDataToFindLen + 1;
-            } 
-        }
-        return -1;
-    }
+		return HeaderLocator.indexOf(ByteBuffer.wrap(srcData), dataToFind, startIndex, endIndex + 1);
+	}
 
 	@Override
 	public int read() throws IOException {
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+/**
+ * This class holds statistics of data of one key of metadata, i.e. of members from offset of key up
+ * to offset of next key (see OffsetIndex.getMemberStats). Values which are not known are -1, and
+ * range of record keys is known only if hasKeyRange() is true.
+ */
+public final class MemberStats {
+
+	private final long key;
+	private final long offset;
+	private final long compressedLength;
+	private final long uncompressedOffset;
+	private final long uncompressedLength;
+	private final long recordCount;
+	private final long minKey;
+	private final long maxKey;
+
+	MemberStats(long key, long offset, long compressedLength, long uncompressedOffset,
+			long uncompressedLength, long recordCount, long minKey, long maxKey) {
+		this.key = key;
+		this.offset = offset;
+		this.compressedLength = compressedLength;
+		this.uncompressedOffset = uncompressedOffset;
+		this.uncompressedLength = uncompressedLength;
+		this.recordCount = recordCount;
+		this.minKey = minKey;
+		this.maxKey = maxKey;
+	}
+
+	/**
+	 * @return key of metadata
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * @return byte offset in compressed file where data of key starts
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getCompressedLength() {
+		return compressedLength;
+	}
+
+	public long getUncompressedOffset() {
+		return uncompressedOffset;
+	}
+
+	public long getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	/**
+	 * @return number of records, as counted by writer (see GZipWriterConfig.setRecordDelimiter and
+	 * GZipOutputStreamRandomAccess.addRecords)
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return true if smallest and largest record keys were given to writer (see
+	 * GZipOutputStreamRandomAccess.addRecordKey)
+	 */
+	public boolean hasKeyRange() {
+		return minKey <= maxKey;
+	}
+
+	public long getMinKey() {
+		return minKey;
+	}
+
+	public long getMaxKey() {
+		return maxKey;
+	}
+
+	@Override
+	public String toString() {
+		return key + ": offset " + offset + ", compressed " + compressedLength + ", uncompressed "
+				+ uncompressedLength + ", records " + recordCount
+				+ (hasKeyRange() ? ", keys " + minKey + " to " + maxKey : "");
+	}
+}
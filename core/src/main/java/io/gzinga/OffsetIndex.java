@@ -0,0 +1,583 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * This class maintains metadata information, i.e. byte offset in compressed file for each key, in
+ * primitive arrays sorted by key. Besides exact lookup it provides floor and ceiling lookup, so that
+ * reader can jump to nearest member at or before a key which itself is not in metadata (e.g. a
+ * timestamp between two checkpoints).
+ *
+ * Files written by current writers also record offset in uncompressed data where member of each key
+ * starts, and total uncompressed length, so reader can seek by uncompressed position as well. These
+ * are -1 for files which do not have them.
+ *
+ * Writers can also record number of records and range of record keys in data of each key, i.e. in
+ * members from its offset up to offset of next key. Together with compressed and uncompressed
+ * lengths, these are returned by getMemberStats() without inflating anything.
+ *
+ * Besides its own keys, index can hold keys of further named dimensions (e.g. sequence numbers
+ * along with timestamps), each one being an OffsetIndex of its own over same members.
+ *
+ * Entries are only added by writers and InputStreamConverter. Once metadata is loaded by reader it
+ * is not modified, so it can be shared across threads.
+ */
+public class OffsetIndex {
+
+	private long[] keys;
+	private long[] offsets;
+	private long[] uncompressedOffsets;
+	/*
+	 * Record count and smallest and largest record key of each entry, or null if none is known.
+	 * Unknown count is -1, and unknown range of keys is Long.MAX_VALUE to Long.MIN_VALUE.
+	 */
+	private long[] recordCounts;
+	private long[] minRecordKeys;
+	private long[] maxRecordKeys;
+	private int size = 0;
+	private long dataLength = -1;
+	private long uncompressedLength = -1;
+	/*
+	 * Compressed and uncompressed offsets of members sorted by position in file, built on first
+	 * lookup by uncompressed position.
+	 */
+	private volatile long[][] members;
+	private Map<String, OffsetIndex> dimensions;
+
+	public OffsetIndex() {
+		this(16);
+	}
+
+	public OffsetIndex(int capacity) {
+		keys = new long[Math.max(capacity, 1)];
+		offsets = new long[keys.length];
+		uncompressedOffsets = new long[keys.length];
+	}
+
+	/**
+	 * Adds entry for given key. If key already exists, then its offset is replaced. Keys which are
+	 * added in increasing order (like timestamps) are appended without any search.
+	 * @param key
+	 * @param offset
+	 */
+	void put(long key, long offset) {
+		put(key, offset, -1);
+	}
+
+	/**
+	 * Adds entry for given key along with offset in uncompressed data where its member starts.
+	 * @param key
+	 * @param offset
+	 * @param uncompressedOffset
+	 */
+	void put(long key, long offset, long uncompressedOffset) {
+		members = null;
+		int i = size == 0 || keys[size - 1] < key ? -(size + 1) : Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			offsets[i] = offset;
+			uncompressedOffsets[i] = uncompressedOffset;
+			if (recordCounts != null) {
+				clearRecordStats(i);
+			}
+			return;
+		}
+		i = -(i + 1);
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+			uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, size * 2);
+			if (recordCounts != null) {
+				recordCounts = Arrays.copyOf(recordCounts, size * 2);
+				minRecordKeys = Arrays.copyOf(minRecordKeys, size * 2);
+				maxRecordKeys = Arrays.copyOf(maxRecordKeys, size * 2);
+			}
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(offsets, i, offsets, i + 1, size - i);
+		System.arraycopy(uncompressedOffsets, i, uncompressedOffsets, i + 1, size - i);
+		keys[i] = key;
+		offsets[i] = offset;
+		uncompressedOffsets[i] = uncompressedOffset;
+		if (recordCounts != null) {
+			System.arraycopy(recordCounts, i, recordCounts, i + 1, size - i);
+			System.arraycopy(minRecordKeys, i, minRecordKeys, i + 1, size - i);
+			System.arraycopy(maxRecordKeys, i, maxRecordKeys, i + 1, size - i);
+			clearRecordStats(i);
+		}
+		size++;
+	}
+
+	void putAll(OffsetIndex index) {
+		for (int i = 0; i < index.size; i++) {
+			put(index.keys[i], index.offsets[i], index.uncompressedOffsets[i]);
+			if (index.recordCounts != null) {
+				setRecordStats(indexOf(index.keys[i]), index.recordCounts[i], index.minRecordKeys[i],
+						index.maxRecordKeys[i]);
+			}
+		}
+		for (String name : index.getDimensionNames()) {
+			dimension(name).putAll(index.getDimension(name));
+		}
+	}
+
+	/**
+	 * Returns index of named key dimension, creating it if it does not exist.
+	 * @param name
+	 * @return
+	 */
+	OffsetIndex dimension(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Dimension name is null");
+		}
+		if (dimensions == null) {
+			dimensions = new LinkedHashMap<String, OffsetIndex>();
+		}
+		OffsetIndex index = dimensions.get(name);
+		if (index == null) {
+			index = new OffsetIndex();
+			dimensions.put(name, index);
+		}
+		return index;
+	}
+
+	/**
+	 * @param name
+	 * @return index of keys of given dimension, or null if there is no such dimension
+	 */
+	public OffsetIndex getDimension(String name) {
+		return dimensions == null ? null : dimensions.get(name);
+	}
+
+	/**
+	 * @return names of key dimensions stored besides keys of this index
+	 */
+	public Set<String> getDimensionNames() {
+		if (dimensions == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(dimensions.keySet());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return compressed length of data members, i.e. offset where metadata members start, or -1 if
+	 * it is not known
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	void setDataLength(long dataLength) {
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * @return total length of uncompressed data, or -1 if it is not known
+	 */
+	public long getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	void setUncompressedLength(long uncompressedLength) {
+		this.uncompressedLength = uncompressedLength;
+	}
+
+	/**
+	 * @return true if uncompressed offset of every entry and total uncompressed length are known
+	 */
+	public boolean hasUncompressedOffsets() {
+		if (uncompressedLength < 0) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (uncompressedOffsets[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if record count or range of record keys is known for any entry
+	 */
+	public boolean hasRecordStats() {
+		return recordCounts != null;
+	}
+
+	/**
+	 * @return approximate number of bytes of heap used by this index
+	 */
+	public long memoryUsage() {
+		long usage = 64 + (recordCounts == null ? 24l : 48l) * keys.length;
+		if (dimensions != null) {
+			for (Map.Entry<String, OffsetIndex> e : dimensions.entrySet()) {
+				usage += 64 + 2l * e.getKey().length() + e.getValue().memoryUsage();
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return key of i-th smallest entry
+	 */
+	public long getKey(int i) {
+		checkIndex(i);
+		return keys[i];
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return byte offset of i-th smallest key
+	 */
+	public long getOffset(int i) {
+		checkIndex(i);
+		return offsets[i];
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return offset in uncompressed data where member of i-th smallest key starts, or -1 if it is
+	 * not known
+	 */
+	public long getUncompressedOffset(int i) {
+		checkIndex(i);
+		return uncompressedOffsets[i];
+	}
+
+	void setUncompressedOffset(int i, long uncompressedOffset) {
+		checkIndex(i);
+		members = null;
+		uncompressedOffsets[i] = uncompressedOffset;
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return number of records in data of i-th smallest key, or -1 if it is not known
+	 */
+	public long getRecordCount(int i) {
+		checkIndex(i);
+		return recordCounts == null ? -1 : recordCounts[i];
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return smallest record key in data of i-th smallest key, or Long.MAX_VALUE if it is not known
+	 */
+	public long getMinRecordKey(int i) {
+		checkIndex(i);
+		return recordCounts == null ? Long.MAX_VALUE : minRecordKeys[i];
+	}
+
+	/**
+	 * @param i position of entry, between 0 and size() - 1
+	 * @return largest record key in data of i-th smallest key, or Long.MIN_VALUE if it is not known
+	 */
+	public long getMaxRecordKey(int i) {
+		checkIndex(i);
+		return recordCounts == null ? Long.MIN_VALUE : maxRecordKeys[i];
+	}
+
+	/**
+	 * Sets record count and range of record keys of i-th entry. Nothing is stored if neither is known.
+	 * @param i
+	 * @param count number of records, or -1
+	 * @param minKey smallest record key, or Long.MAX_VALUE
+	 * @param maxKey largest record key, or Long.MIN_VALUE
+	 */
+	void setRecordStats(int i, long count, long minKey, long maxKey) {
+		checkIndex(i);
+		if (recordCounts == null) {
+			if (count < 0 && minKey > maxKey) {
+				return;
+			}
+			recordCounts = new long[keys.length];
+			minRecordKeys = new long[keys.length];
+			maxRecordKeys = new long[keys.length];
+			for (int j = 0; j < size; j++) {
+				clearRecordStats(j);
+			}
+		}
+		recordCounts[i] = count;
+		minRecordKeys[i] = minKey;
+		maxRecordKeys[i] = maxKey;
+	}
+
+	private void clearRecordStats(int i) {
+		recordCounts[i] = -1;
+		minRecordKeys[i] = Long.MAX_VALUE;
+		maxRecordKeys[i] = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns statistics of data of every key, in order of keys. Compressed and uncompressed lengths
+	 * of data of a key reach up to offset of next key in file, or to end of data members for last one.
+	 * @return
+	 */
+	public List<MemberStats> getMemberStats() {
+		long[][] m = members();
+		List<MemberStats> stats = new ArrayList<MemberStats>(size);
+		for (int i = 0; i < size; i++) {
+			// first member which starts after this one
+			int j = Arrays.binarySearch(m[0], offsets[i]);
+			j = j < 0 ? -(j + 1) : j;
+			while (j < m[0].length && m[0][j] <= offsets[i]) {
+				j++;
+			}
+			long end = j < m[0].length ? m[0][j] : dataLength;
+			long uncompressedEnd = j < m[0].length ? m[1][j] : uncompressedLength;
+			long compressed = end < 0 ? -1 : end - offsets[i];
+			long uncompressed = uncompressedEnd < 0 || uncompressedOffsets[i] < 0 ? -1
+					: uncompressedEnd - uncompressedOffsets[i];
+			stats.add(new MemberStats(keys[i], offsets[i], compressed, uncompressedOffsets[i], uncompressed,
+					getRecordCount(i), getMinRecordKey(i), getMaxRecordKey(i)));
+		}
+		return stats;
+	}
+
+	/**
+	 * @param key
+	 * @return position of given key or -1 if key does not exist
+	 */
+	public int indexOf(long key) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		return i >= 0 ? i : -1;
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) != -1;
+	}
+
+	/**
+	 * @param key
+	 * @return position of greatest key less than or equal to given key, or -1 if there is none
+	 */
+	public int floorIndex(long key) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		return i >= 0 ? i : -(i + 1) - 1;
+	}
+
+	/**
+	 * @param key
+	 * @return position of smallest key greater than or equal to given key, or -1 if there is none
+	 */
+	public int ceilingIndex(long key) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			return i;
+		}
+		i = -(i + 1);
+		return i < size ? i : -1;
+	}
+
+	/**
+	 * Returns byte offset of nearest member at or before given key.
+	 * @param key
+	 * @return byte offset, or -1 if all keys are greater than given key
+	 */
+	public long floorOffset(long key) {
+		int i = floorIndex(key);
+		return i == -1 ? -1 : offsets[i];
+	}
+
+	/**
+	 * Returns position of member which contains given offset in uncompressed data. Members are
+	 * numbered in file order, with first member of file (which may not have a key) as 0. Should be
+	 * used only if hasUncompressedOffsets() is true.
+	 * @param uncompressedOffset
+	 * @return member position, see memberOffset and memberUncompressedOffset
+	 */
+	int floorMember(long uncompressedOffset) {
+		long[] starts = members()[1];
+		int i = Arrays.binarySearch(starts, uncompressedOffset);
+		if (i < 0) {
+			return Math.max(-(i + 1) - 1, 0);
+		}
+		// empty members share start, data is in last of them
+		while (i + 1 < starts.length && starts[i + 1] == uncompressedOffset) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param offset byte offset in compressed file
+	 * @return position of member which starts at given offset, or -1 if there is none
+	 */
+	int memberAt(long offset) {
+		int i = Arrays.binarySearch(members()[0], offset);
+		return i >= 0 ? i : -1;
+	}
+
+	/**
+	 * @param m member position returned by floorMember
+	 * @return byte offset of member in compressed file
+	 */
+	long memberOffset(int m) {
+		return members()[0][m];
+	}
+
+	/**
+	 * @param m member position returned by floorMember
+	 * @return offset in uncompressed data where member starts
+	 */
+	long memberUncompressedOffset(int m) {
+		return members()[1][m];
+	}
+
+	private long[][] members() {
+		long[][] m = members;
+		if (m == null) {
+			long[][] sorted = new long[size][];
+			for (int i = 0; i < size; i++) {
+				sorted[i] = new long[] {offsets[i], uncompressedOffsets[i]};
+			}
+			Arrays.sort(sorted, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] a, long[] b) {
+					return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+				}
+			});
+			boolean first = size == 0 || sorted[0][1] != 0;
+			int n = first ? size + 1 : size;
+			m = new long[2][n];
+			// data before first key starts at offset 0 of both
+			int j = first ? 1 : 0;
+			for (int i = 0; i < size; i++, j++) {
+				m[0][j] = sorted[i][0];
+				m[1][j] = sorted[i][1];
+			}
+			members = m;
+		}
+		return m;
+	}
+
+	/**
+	 * Returns byte offset where data of keys greater than given key starts, i.e. offset of first key
+	 * after it which is not in same member as nearest key at or before given key (see addKey), if
+	 * keys were added in increasing order of offsets.
+	 * @param key
+	 * @return byte offset, or -1 if there is no greater key in a later member
+	 */
+	public long higherOffset(long key) {
+		int i = floorIndex(key);
+		long floor = i == -1 ? -1 : offsets[i];
+		for (i++; i < size; i++) {
+			if (offsets[i] > floor) {
+				return offsets[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return byte offsets of all entries in increasing order
+	 */
+	public long[] sortedOffsets() {
+		long[] sorted = Arrays.copyOf(offsets, size);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return read only Map view of this index, ordered by key
+	 */
+	public Map<Long, Long> asMap() {
+		return new MapView();
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+	}
+
+	private final class MapView extends AbstractMap<Long, Long> {
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Long && indexOf((Long) key) != -1;
+		}
+
+		@Override
+		public Long get(Object key) {
+			if (!(key instanceof Long)) {
+				return null;
+			}
+			int i = indexOf((Long) key);
+			return i == -1 ? null : offsets[i];
+		}
+
+		@Override
+		public Set<Map.Entry<Long, Long>> entrySet() {
+			return new AbstractSet<Map.Entry<Long, Long>>() {
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Map.Entry<Long, Long>> iterator() {
+					return new Iterator<Map.Entry<Long, Long>>() {
+						private int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < size;
+						}
+
+						@Override
+						public Map.Entry<Long, Long> next() {
+							if (i >= size) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<Long, Long> e = new SimpleImmutableEntry<Long, Long>(keys[i], offsets[i]);
+							i++;
+							return e;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches metadata information of files, so that opening same file again does not read
+ * and parse its metadata. Entries are keyed by SeekableInputStream.getIdentity() (path, length and
+ * modification time for local files) and are evicted in least recently used order once approximate
+ * memory used by cached indexes goes beyond configured limit.
+ *
+ * InputStreamConverter uses shared instance, whose limit defaults to 64 MB and can be set using
+ * system property "gzinga.index.cache.bytes". Limit of 0 disables caching.
+ */
+public class OffsetIndexCache {
+
+	public static final String MAX_BYTES_PROPERTY = "gzinga.index.cache.bytes";
+	private static final long DEFAULT_MAX_BYTES = 64l * 1024 * 1024;
+
+	private static final OffsetIndexCache shared = new OffsetIndexCache(
+			Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+
+	private final LinkedHashMap<String, OffsetIndex> entries =
+			new LinkedHashMap<String, OffsetIndex>(16, 0.75f, true);
+	private long maxBytes;
+	private long bytes = 0;
+
+	public OffsetIndexCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return cache used by all readers in this process
+	 */
+	public static OffsetIndexCache getShared() {
+		return shared;
+	}
+
+	public synchronized OffsetIndex get(String identity) {
+		return entries.get(identity);
+	}
+
+	/**
+	 * Adds index for given identity and evicts least recently used entries if cache is full. Index
+	 * larger than limit of cache is not cached.
+	 * @param identity
+	 * @param index
+	 */
+	public synchronized void put(String identity, OffsetIndex index) {
+		if (index.memoryUsage() > maxBytes) {
+			return;
+		}
+		OffsetIndex old = entries.put(identity, index);
+		if (old != null) {
+			bytes -= old.memoryUsage();
+		}
+		bytes += index.memoryUsage();
+		evict();
+	}
+
+	public synchronized void remove(String identity) {
+		OffsetIndex old = entries.remove(identity);
+		if (old != null) {
+			bytes -= old.memoryUsage();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Changes limit of cache and evicts entries if needed.
+	 * @param maxBytes
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return approximate number of bytes used by cached indexes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, OffsetIndex>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().memoryUsage();
+			it.remove();
+		}
+	}
+}
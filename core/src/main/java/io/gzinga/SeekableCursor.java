@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.IOException;
+
+/**
+ * This class is a lightweight view over a shared SeekableInputStream. It has its own file pointer
+ * position and reads using positioned reads of shared stream, so several cursors over one open file
+ * can be used by different threads at same time. Reads are buffered to avoid one positioned read
+ * for every byte of header. Closing cursor does not close shared stream.
+ */
+public class SeekableCursor extends SeekableInputStream {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final SeekableInputStream shared;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private long bufStart = 0;
+	private int bufLen = 0;
+	private long pos = 0;
+	private boolean closed = false;
+
+	public SeekableCursor(SeekableInputStream shared) {
+		this.shared = shared;
+	}
+
+	@Override
+	public void seek(long offset) throws IOException {
+		ensureOpen();
+		pos = offset;
+	}
+
+	@Override
+	public long getPos() throws IOException {
+		return pos;
+	}
+
+	@Override
+	public long getLen() {
+		return shared.getLen();
+	}
+
+	@Override
+	public String getIdentity() {
+		return shared.getIdentity();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buf[(int) (pos++ - bufStart)] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (len >= BUFFER_SIZE && (pos < bufStart || pos >= bufStart + bufLen)) {
+			int n = shared.read(pos, b, off, len);
+			if (n > 0) {
+				pos += n;
+			}
+			return n;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, (int) (bufStart + bufLen - pos));
+		System.arraycopy(buf, (int) (pos - bufStart), b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int read(long position, byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		return shared.read(position, b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		long skipped = Math.min(n, Math.max(0, getLen() - pos));
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, getLen() - pos));
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		super.close();
+	}
+
+	/*
+	 * Makes sure buffer contains byte at current position. Returns false at end of file.
+	 */
+	private boolean fill() throws IOException {
+		ensureOpen();
+		if (pos >= bufStart && pos < bufStart + bufLen) {
+			return true;
+		}
+		int n = shared.read(pos, buf, 0, buf.length);
+		if (n <= 0) {
+			bufLen = 0;
+			return false;
+		}
+		bufStart = pos;
+		bufLen = n;
+		return true;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
@@ -16,6 +16,7 @@
 
 package io.gzinga;
 
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 
@@ -47,4 +48,59 @@ public abstract class SeekableInputStream extends InputStream {
 	 * @return total file length in bytes
 	 */
 	public abstract long getLen();
+
+	/**
+	 * This method returns identity of underlying file, which is used as key for caching its
+	 * metadata in OffsetIndexCache. Identity should change whenever file content changes, e.g.
+	 * by including file length and modification time.
+	 * @return identity of file, or null if metadata of this stream should not be cached.
+	 */
+	public String getIdentity() {
+		return null;
+	}
+
+	/**
+	 * This method reads up to len bytes starting at given position in file without changing current
+	 * file pointer position. Default implementation seeks, reads and seeks back while holding lock
+	 * on this stream. Implementations which override it with real positioned reads (like pread)
+	 * can be used by multiple threads concurrently.
+	 * @param position byte location to read from
+	 * @param buf buffer into which data is read
+	 * @param off start offset in buffer
+	 * @param len maximum number of bytes to read
+	 * @return number of bytes read, or -1 if position is at or beyond end of file
+	 * @throws IOException if any error occurs
+	 */
+	public int read(long position, byte[] buf, int off, int len) throws IOException {
+		synchronized (this) {
+			long pos = getPos();
+			try {
+				seek(position);
+				return read(buf, off, len);
+			} finally {
+				seek(pos);
+			}
+		}
+	}
+
+	/**
+	 * This method reads exactly len bytes starting at given position in file without changing
+	 * current file pointer position.
+	 * @param position byte location to read from
+	 * @param buf buffer into which data is read
+	 * @param off start offset in buffer
+	 * @param len number of bytes to read
+	 * @throws IOException if end of file is reached before reading len bytes
+	 */
+	public void readFully(long position, byte[] buf, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = read(position, buf, off, len);
+			if (n == -1) {
+				throw new EOFException("Unexpected end of file at " + position);
+			}
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class implements methods for SeekableInputStream with use of memory mapped file. Seek is
+ * only a change of file pointer position and reads are served from mapped memory, so header and
+ * metadata parsing does not make any system call.
+ *
+ * Files larger than one segment (1 GB by default) are mapped as multiple segments. Mapped memory is
+ * released by garbage collector once stream is no longer referenced.
+ */
+public class SeekableMappedFile extends SeekableInputStream {
+
+	private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+	private final MappedByteBuffer[] segments;
+	private final int segmentSize;
+	private final long len;
+	private final String identity;
+	private long pos = 0;
+	private boolean closed = false;
+
+	public SeekableMappedFile(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE);
+	}
+
+	SeekableMappedFile(File file, int segmentSize) throws IOException {
+		this.segmentSize = segmentSize;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			this.len = channel.size();
+			this.identity = file.getAbsolutePath() + ":" + len + ":" + file.lastModified();
+			int count = (int) ((len + segmentSize - 1) / segmentSize);
+			this.segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long) i * segmentSize;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(segmentSize, len - start));
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public long getLen() {
+		return this.len;
+	}
+
+	@Override
+	public String getIdentity() {
+		return this.identity;
+	}
+
+	@Override
+	public void seek(long offset) throws IOException {
+		ensureOpen();
+		if (offset < 0) {
+			throw new IOException("Negative seek offset");
+		}
+		pos = offset;
+	}
+
+	@Override
+	public long getPos() throws IOException {
+		return pos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		ensureOpen();
+		if (pos >= len) {
+			return -1;
+		}
+		int b = segments[(int) (pos / segmentSize)].get((int) (pos % segmentSize)) & 0xff;
+		pos++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (pos >= this.len) {
+			return -1;
+		}
+		int total = (int) Math.min(len, this.len - pos);
+		int remaining = total;
+		while (remaining > 0) {
+			MappedByteBuffer segment = segments[(int) (pos / segmentSize)];
+			int index = (int) (pos % segmentSize);
+			int n = Math.min(remaining, segment.limit() - index);
+			((Buffer) segment).position(index);
+			segment.get(buf, off, n);
+			off += n;
+			pos += n;
+			remaining -= n;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads from duplicate of mapped buffers, so it does not change file pointer position and can be
+	 * used by multiple threads concurrently.
+	 */
+	@Override
+	public int read(long position, byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= this.len) {
+			return -1;
+		}
+		int total = (int) Math.min(len, this.len - position);
+		int remaining = total;
+		while (remaining > 0) {
+			ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+			int index = (int) (position % segmentSize);
+			int n = Math.min(remaining, segment.limit() - index);
+			((Buffer) segment).position(index);
+			segment.get(buf, off, n);
+			off += n;
+			position += n;
+			remaining -= n;
+		}
+		return total;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n <= 0) {
+			return 0;
+		}
+		long skipped = Math.min(n, Math.max(0, len - pos));
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		super.close();
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, len - pos));
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
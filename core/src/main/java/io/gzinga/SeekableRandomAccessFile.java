@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * This class implements methods for SeekableInputStream with use of RandomAccessFile.
@@ -30,16 +31,23 @@ public class SeekableRandomAccessFile extends SeekableInputStream {
 
 	RandomAccessFile raf;
 	private long len;
+	private String identity;
 	
 	public SeekableRandomAccessFile(File file) throws FileNotFoundException {
 		raf = new RandomAccessFile(file, "r");
 		len = file.length();
+		identity = file.getAbsolutePath() + ":" + len + ":" + file.lastModified();
 	}
 	
 	@Override
 	public long getLen() {
 		return this.len;
 	}
+
+	@Override
+	public String getIdentity() {
+		return this.identity;
+	}
 	
 	@Override
 	public void seek(long offset) throws IOException {
@@ -67,6 +75,18 @@ public class SeekableRandomAccessFile extends SeekableInputStream {
     }
     
 
+	/**
+	 * Reads using FileChannel positioned read, which does not change file pointer position and can be
+	 * used by multiple threads concurrently.
+	 */
+	@Override
+	public int read(long position, byte[] buf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		return raf.getChannel().read(ByteBuffer.wrap(buf, off, len), position);
+	}
+
 	@Override
 	public void close() throws IOException {
 		raf.close();
@@ -16,7 +16,30 @@
 
 package io.gzinga;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -68,4 +91,1146 @@ public class TestGZipRandomAccess {
 			Assert.fail();
 		}
 	}
+
+	@Test
+	public void testGZipParallelOutputStream() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			GZipParallelOutputStreamRandomAccess gzip = new GZipParallelOutputStreamRandomAccess(
+					new FileOutputStream("./target/testfile-parallel"), executor, 1000, 8);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			for(int i = 1; i <= 10000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+				byte[] str = ("This is line " + i + "\n").getBytes();
+				gzip.write(str);
+				expected.write(str);
+			}
+			Assert.assertEquals(gzip.getOffsetMap().size(), 100);
+			gzip.close();
+
+			Assert.assertEquals(readFully(new GZIPInputStream(new FileInputStream("./target/testfile-parallel"))),
+					expected.toByteArray());
+			Assert.assertEquals(readFully(new GZipParallelInputStream(
+					new SeekableRandomAccessFile(new File("./target/testfile-parallel")), executor, 3)),
+					expected.toByteArray());
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(new File("./target/testfile-parallel"));
+			Assert.assertEquals(gzin.getMetadata().size(), 100);
+			gzin.jumpToIndex(50l);
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("This is line 5000\n"));
+			gzin.close();
+
+			// underlying stream is closed even if writing of last member fails
+			final boolean[] failing = new boolean[1];
+			final boolean[] closed = new boolean[1];
+			gzip = new GZipParallelOutputStreamRandomAccess(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (failing[0]) {
+						throw new IOException("disk full");
+					}
+				}
+
+				@Override
+				public void close() {
+					closed[0] = true;
+				}
+			}, executor, 1000, 8);
+			gzip.write("This is line 1\n".getBytes());
+			failing[0] = true;
+			try {
+				gzip.close();
+				Assert.fail();
+			} catch(IOException e) {
+			}
+			Assert.assertTrue(closed[0]);
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelInputLargeSegments() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// first segment has no key, so it is much larger than others
+			File stored = new File("./target/testfile-parallel-large");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(stored);
+			gzip.write(lines(0, 20000).getBytes());
+			for(int i = 1; i <= 20; i++) {
+				gzip.addOffset((long) i);
+				gzip.write(lines(20000 + (i - 1) * 100, 20000 + i * 100).getBytes());
+				if(i % 5 == 0) {
+					gzip.write(lines(0, 5000).getBytes());
+				}
+			}
+			gzip.close();
+			byte[] expected = readFully(new GZIPInputStream(new FileInputStream(stored)));
+			// segments larger than 8 KB are inflated by reader, rest by workers
+			Assert.assertEquals(readFully(new GZipParallelInputStream(
+					new SeekableRandomAccessFile(stored), executor, 3, 8 * 1024)), expected);
+			Assert.assertEquals(readFully(new GZipParallelInputStream(
+					new SeekableRandomAccessFile(stored), executor, 3, 1)), expected);
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLargeIndex() {
+		try {
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(new File("./target/testfile-index"));
+			for(int i = 0; i < 30000; i++) {
+				gzip.addOffset(1000000l + i * 7);
+				gzip.write(("line " + i + "\n").getBytes());
+			}
+			gzip.close();
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(new File("./target/testfile-index"));
+			Assert.assertEquals(gzin.getMetadata().size(), 30000);
+			gzin.jumpToIndex(1000000l + 29990 * 7);
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("line 29990\n"));
+
+			// keys between checkpoints land on nearest preceding checkpoint, also after partial read
+			gzin = new GZipInputStreamRandomAccess(new File("./target/testfile-index"));
+			Assert.assertEquals(gzin.getIndex().floorOffset(999999l), -1l);
+			gzin.jumpToIndex(1000000l + 100 * 7 + 3);
+			Assert.assertEquals(gzin.read(), 'l');
+			gzin.jumpToIndex(1000000l + 20000 * 7 + 6);
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("line 20000\n"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSeekableMappedFile() {
+		try {
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(new File("./target/testfile-mapped"));
+			for(int i = 1; i <= 10000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+				gzip.write(("This is line " + i + "\n").getBytes());
+			}
+			gzip.close();
+			File file = new File("./target/testfile-mapped");
+			Assert.assertTrue(GZipInputStreamRandomAccess.isGzipRandomOutputFile(new SeekableMappedFile(file, 1000)));
+			GZipInputStreamRandomAccess expected = new GZipInputStreamRandomAccess(file);
+			expected.jumpToIndex(30l);
+			// small segments make reads and metadata parsing cross segment boundaries
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(new SeekableMappedFile(file, 1000));
+			Assert.assertEquals(gzin.getMetadata(), expected.getMetadata());
+			gzin.jumpToIndex(30l);
+			Assert.assertEquals(readFully(gzin), readFully(expected));
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testOffsetIndexCache() {
+		try {
+			File file = new File("./target/testfile-cache");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			for(int i = 1; i <= 100; i++) {
+				gzip.addOffset((long)i);
+				gzip.write("This is line\n".getBytes());
+			}
+			gzip.close();
+			GZipInputStreamRandomAccess gzin1 = new GZipInputStreamRandomAccess(file);
+			GZipInputStreamRandomAccess gzin2 = new GZipInputStreamRandomAccess(file);
+			Assert.assertSame(gzin2.getIndex(), gzin1.getIndex());
+			gzin1.close();
+			gzin2.close();
+
+			gzip = new GZipOutputStreamRandomAccess(file);
+			gzip.addOffset(1000l);
+			gzip.write("This is line\n".getBytes());
+			gzip.close();
+			GZipInputStreamRandomAccess gzin3 = new GZipInputStreamRandomAccess(file);
+			Assert.assertEquals(gzin3.getMetadata().size(), 1);
+			gzin3.close();
+
+			long size = gzin3.getIndex().memoryUsage();
+			OffsetIndexCache cache = new OffsetIndexCache(2 * size);
+			cache.put("a", gzin1.getIndex());
+			Assert.assertNull(cache.get("a"));
+			cache.put("b", gzin3.getIndex());
+			cache.put("c", gzin3.getIndex());
+			cache.get("b");
+			cache.put("d", gzin3.getIndex());
+			Assert.assertNull(cache.get("c"));
+			Assert.assertNotNull(cache.get("b"));
+			Assert.assertEquals(cache.getBytes(), 2 * size);
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCursors() {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			File file = new File("./target/testfile-cursor");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			for(int i = 1; i <= 10000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+				gzip.write(("This is line " + i + "\n").getBytes());
+			}
+			gzip.close();
+			final GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(long i = 1; i <= 100; i++) {
+				final long key = i;
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						GZipInputStreamRandomAccess cursor = gzin.openCursor(key);
+						byte[] buf = new byte[32];
+						int n = cursor.read(buf);
+						cursor.close();
+						return new String(buf, 0, n);
+					}
+				}));
+			}
+			for(int i = 1; i <= 100; i++) {
+				Assert.assertTrue(results.get(i - 1).get().startsWith("This is line " + (i * 100) + "\n"));
+			}
+			gzin.jumpToIndex(20l);
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("This is line 2000\n"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMemberInputStream() {
+		try {
+			File file = new File("./target/testfile-member");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			for(int i = 1; i <= 10000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+				gzip.write(("This is line " + i + "\n").getBytes());
+			}
+			gzip.close();
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+			byte[] all = new byte[200000];
+			int total = 0;
+			int n;
+			while((n = gzin.read(ByteBuffer.wrap(all, total, all.length - total))) != -1) {
+				total += n;
+			}
+			Assert.assertTrue(new String(all, 0, total).endsWith("This is line 10000\n"));
+			// jump after end of file has been reached
+			gzin.jumpToIndex(50l);
+			long pos = gzin.getPos();
+			Assert.assertEquals(pos, gzin.getIndex().floorOffset(50));
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("This is line 5000\n"));
+
+			// corrupt CRC in trailer of first member
+			byte[] bytes = readFully(new FileInputStream(file));
+			long second = gzin.getIndex().getOffset(0);
+			bytes[(int) second - 8] ^= 1;
+			GZipMemberInputStream member = new GZipMemberInputStream(new SeekableMappedFile(writeFile("./target/testfile-member-corrupt", bytes)));
+			try {
+				readFully(member);
+				Assert.fail();
+			} catch(ZipException e) {
+				Assert.assertTrue(e.getMessage().contains("CRC"));
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testAsyncWriter() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			File syncFile = new File("./target/testfile-sync");
+			File asyncFile = new File("./target/testfile-async");
+			GZipOutputStreamRandomAccess sync = new GZipOutputStreamRandomAccess(syncFile);
+			GZipOutputStreamRandomAccess async = new GZipOutputStreamRandomAccess(asyncFile, true);
+			GZipOutputStreamRandomAccess shared = new GZipOutputStreamRandomAccess(
+					new AsyncFlushingOutputStream(new ByteArrayOutputStream(), executor, 1024));
+			for(int i = 1; i <= 10000; i++) {
+				if(i % 100 == 0) {
+					sync.addOffset(i/100l);
+					async.addOffset(i/100l);
+					shared.addOffset(i/100l);
+				}
+				byte[] line = ("This is line " + i + "\n").getBytes();
+				sync.write(line);
+				async.write(line);
+				shared.write(line);
+			}
+			sync.close();
+			async.close();
+			shared.close();
+			Assert.assertEquals(readFully(new FileInputStream(asyncFile)), readFully(new FileInputStream(syncFile)));
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(asyncFile, 70l);
+			Assert.assertTrue(new String(readFully(gzin)).startsWith("This is line 7000\n"));
+
+			AsyncFlushingOutputStream failing = new AsyncFlushingOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					throw new IOException("disk full");
+				}
+			}, executor, 16);
+			try {
+				failing.write(new byte[64]);
+				failing.flush();
+				Assert.fail();
+			} catch(IOException e) {
+				Assert.assertEquals(e.getMessage(), "disk full");
+			}
+			// bytes of failed buffer are lost, so stream does not accept anything after them
+			try {
+				failing.write(new byte[1]);
+				Assert.fail();
+			} catch(IOException e) {
+				Assert.assertEquals(e.getMessage(), "disk full");
+			}
+			try {
+				failing.close();
+				Assert.fail();
+			} catch(IOException e) {
+				Assert.assertEquals(e.getMessage(), "disk full");
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testHeaderLocator() {
+		try {
+			// overlapping partial match
+			byte[] src = "xaaab".getBytes();
+			Assert.assertEquals(InputStreamConverter.firstIndexOf(src, "aab".getBytes(), 0, src.length - 1), 2);
+			Assert.assertEquals(InputStreamConverter.lastIndexOf(src, "aa".getBytes(), 0, src.length - 1), 2);
+
+			File file = new File("./target/testfile-locator");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			Random random = new Random(1);
+			for(int i = 1; i <= 2000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+				byte[] bytes = new byte[100];
+				random.nextBytes(bytes);
+				gzip.write(bytes);
+			}
+			gzip.close();
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+			long[] offsets = gzin.getIndex().sortedOffsets();
+			gzin.close();
+
+			// fake header prefix in compressed data, followed by bytes which do not inflate
+			byte[] bytes = readFully(new FileInputStream(file));
+			int fake = (int) offsets[3] + 100;
+			System.arraycopy(HeaderLocator.HEADER_PREFIX, 0, bytes, fake, HeaderLocator.HEADER_PREFIX.length);
+			bytes[fake + 9] = 3;
+			bytes[fake + 10] = 0;
+			bytes[fake + 11] = (byte) 0xff;
+			bytes[fake + 12] = (byte) 0xff;
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			Assert.assertEquals(HeaderLocator.indexOf(buf, (int) offsets[3] + 1, bytes.length), fake);
+			Assert.assertFalse(HeaderLocator.isValidHeader(buf, fake, bytes.length));
+			Assert.assertEquals(HeaderLocator.findHeader(buf, (int) offsets[3] + 1, bytes.length), offsets[4]);
+
+			SeekableInputStream in = new SeekableMappedFile(writeFile("./target/testfile-locator-fake", bytes));
+			for(int i = 0; i < offsets.length; i++) {
+				Assert.assertEquals(HeaderLocator.findHeader(in, i == 0 ? 1 : offsets[i - 1] + 1), offsets[i]);
+			}
+			Assert.assertEquals(HeaderLocator.findHeader(in, offsets[offsets.length - 1] + 1), bytes.length);
+			in.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCheckpointIndex() {
+		try {
+			// two members of ordinary gzip, with data which is not too easy to compress
+			Random random = new Random(2);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			for(int i = 0; i < 200000; i++) {
+				data.write(("line " + i + " " + random.nextInt(1000) + "\n").getBytes());
+			}
+			byte[] bytes = data.toByteArray();
+			File file = new File("./target/testfile-plain.gz");
+			FileOutputStream fos = new FileOutputStream(file);
+			GZIPOutputStream gzip = new GZIPOutputStream(fos);
+			gzip.write(bytes, 0, bytes.length / 3);
+			gzip.finish();
+			gzip = new GZIPOutputStream(fos);
+			gzip.write(bytes, bytes.length / 3, bytes.length - bytes.length / 3);
+			gzip.close();
+			Assert.assertFalse(GZipInputStreamRandomAccess.isGzipRandomOutputFile(file));
+
+			CheckpointIndex built = GZipIndexBuilder.build(file, 256 * 1024);
+			Assert.assertEquals(built.getUncompressedLength(), bytes.length);
+			CheckpointIndex index = CheckpointIndex.read(new FileInputStream(CheckpointIndex.sidecar(file)));
+			Assert.assertEquals(index.size(), built.size());
+			int windows = 0;
+			int unaligned = 0;
+			for(int i = 0; i < index.size(); i++) {
+				Assert.assertEquals(index.getUncompressedOffset(i), built.getUncompressedOffset(i));
+				Assert.assertEquals(index.getBitOffset(i), built.getBitOffset(i));
+				if(index.getBitOffset(i) != 0) {
+					unaligned++;
+				}
+				if(index.getWindow(i) != null) {
+					windows++;
+					Assert.assertEquals(index.getWindow(i), built.getWindow(i));
+				}
+			}
+			Assert.assertTrue(windows > 8);
+			Assert.assertTrue(unaligned > 0);
+
+			GZipCheckpointInputStream in = new GZipCheckpointInputStream(file);
+			for(int i = 0; i < 50; i++) {
+				int pos = random.nextInt(bytes.length);
+				in.seek(pos);
+				Assert.assertEquals(in.getPosition(), pos);
+				byte[] buf = new byte[1000];
+				int len = 0;
+				int n;
+				while(len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1) {
+					len += n;
+				}
+				Assert.assertEquals(len, Math.min(1000, bytes.length - pos));
+				for(int j = 0; j < len; j++) {
+					Assert.assertEquals(buf[j], bytes[pos + j]);
+				}
+			}
+			in.seek(bytes.length - 10);
+			Assert.assertEquals(readFully(in).length, 10);
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testUncompressedSeek() {
+		try {
+			Random random = new Random(3);
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			for(int i = 0; i < 100000; i++) {
+				data.write(("line " + i + " " + random.nextInt(1000) + "\n").getBytes());
+			}
+			byte[] bytes = data.toByteArray();
+			File file = new File("./target/testfile-seek");
+			File parallelFile = new File("./target/testfile-seek-parallel");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			GZipParallelOutputStreamRandomAccess pgzip = new GZipParallelOutputStreamRandomAccess(
+					new FileOutputStream(parallelFile), 2);
+			for(int pos = 0, key = 0; pos < bytes.length; pos += 20000, key++) {
+				gzip.addOffset((long) key);
+				pgzip.addOffset((long) key);
+				gzip.write(bytes, pos, Math.min(20000, bytes.length - pos));
+				pgzip.write(bytes, pos, Math.min(20000, bytes.length - pos));
+			}
+			gzip.close();
+			pgzip.close();
+
+			for(File f : new File[] {file, parallelFile}) {
+				GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(f);
+				OffsetIndex index = gzin.getIndex();
+				Assert.assertEquals(index.getUncompressedLength(), bytes.length);
+				Assert.assertEquals(index.getUncompressedOffset(index.indexOf(3)), 60000);
+				gzin.jumpToIndex(5l);
+				Assert.assertEquals(gzin.getPosition(), 100000);
+				for(int i = 0; i < 50; i++) {
+					int pos = random.nextInt(bytes.length);
+					gzin.seek(pos);
+					Assert.assertEquals(gzin.getPosition(), pos);
+					byte[] buf = new byte[100];
+					int len = gzin.read(buf, 0, buf.length);
+					Assert.assertTrue(len > 0);
+					for(int j = 0; j < len; j++) {
+						Assert.assertEquals(buf[j], bytes[pos + j]);
+					}
+				}
+				gzin.seek(0);
+				Assert.assertEquals(gzin.skip(1234567), 1234567);
+				Assert.assertEquals(gzin.getPosition(), 1234567);
+				Assert.assertEquals(gzin.read(), bytes[1234567] & 0xff);
+				Assert.assertEquals(gzin.skip(bytes.length), bytes.length - 1234568);
+				Assert.assertEquals(gzin.read(), -1);
+				gzin.close();
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRangeQuery() {
+		try {
+			File file = new File("./target/testfile-range");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(file);
+			for(int i = 0; i < 10000; i++) {
+				if(i % 100 == 0) {
+					gzip.addOffset(i / 100l);
+					gzip.addKey("seq", i * 10l);
+				}
+				gzip.write(("line " + i + "\n").getBytes());
+			}
+			gzip.close();
+
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+			Assert.assertTrue(gzin.getIndex().getDimensionNames().contains("seq"));
+			Assert.assertEquals(gzin.getIndex().getDimension("seq").size(), 100);
+			Assert.assertEquals(new String(readFully(gzin.openRange(10l, 19l))), lines(1000, 2000));
+			Assert.assertEquals(new String(readFully(gzin.openRange(10l, 10l))), lines(1000, 1100));
+			Assert.assertEquals(new String(readFully(gzin.openRange(95l, 200l))), lines(9500, 10000));
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 10500l, 12000l))),
+					lines(1000, 1300));
+			gzin.jumpToIndex("seq", 5000l);
+			Assert.assertEquals(new String(readFully(gzin)), lines(500, 10000));
+			try {
+				gzin.openRange("missing", 0l, 1l);
+				Assert.fail();
+			} catch(IllegalArgumentException e) {
+			}
+			gzin.close();
+
+			// several keys per member
+			file = new File("./target/testfile-range-shared");
+			gzip = new GZipOutputStreamRandomAccess(file);
+			gzip.addOffset("seq", 1l);
+			gzip.addKey("seq", 2l);
+			gzip.addKey(null, 10l);
+			gzip.addKey(null, 11l);
+			gzip.write("A".getBytes());
+			gzip.addOffset("seq", 3l);
+			gzip.addKey("seq", 4l);
+			gzip.addKey(null, 12l);
+			gzip.addKey(null, 13l);
+			gzip.write("B".getBytes());
+			gzip.addOffset("seq", 5l);
+			gzip.addKey(null, 14l);
+			gzip.write("C".getBytes());
+			gzip.close();
+			gzin = new GZipInputStreamRandomAccess(file);
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 1l, 3l))), "AB");
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 3l, 3l))), "B");
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 2l, 2l))), "A");
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 4l, 5l))), "BC");
+			Assert.assertEquals(new String(readFully(gzin.openRange(10l, 12l))), "AB");
+			Assert.assertEquals(new String(readFully(gzin.openRange(13l, 13l))), "B");
+			// null keys mean beginning and end of file
+			Assert.assertEquals(new String(readFully(gzin.openRange(null, 12l))), "AB");
+			Assert.assertEquals(new String(readFully(gzin.openRange("seq", 3l, null))), "BC");
+			gzin.jumpToIndex("seq", 5l);
+			gzin.jumpToIndex(null);
+			Assert.assertEquals(new String(readFully(gzin)), "ABC");
+			gzin.close();
+			gzip = new GZipOutputStreamRandomAccess(new ByteArrayOutputStream());
+			try {
+				gzip.addKey("seq", null);
+				Assert.fail();
+			} catch(IllegalArgumentException e) {
+			}
+			try {
+				gzip.addOffset(null);
+				Assert.fail();
+			} catch(IllegalArgumentException e) {
+			}
+			gzip.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testConcurrentAppender() {
+		try {
+			File file = new File("./target/testfile-appender");
+			final GZipConcurrentAppender appender = new GZipConcurrentAppender(new FileOutputStream(file), 4096, 4);
+			final int threads = 8;
+			final int records = 5000;
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for(int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for(int i = 0; i < records; i++) {
+							appender.append(("thread " + thread + " record " + i + "\n").getBytes());
+							if(thread == 0 && i % 1000 == 999) {
+								appender.addOffset((long) i);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> f : futures) {
+				f.get();
+			}
+			executor.shutdown();
+			appender.addOffset(100000l);
+			appender.append("last\n".getBytes());
+			appender.close();
+
+			String[] lines = new String(readFully(new GZIPInputStream(new FileInputStream(file)))).split("\n");
+			Assert.assertEquals(lines.length, threads * records + 1);
+			int[] next = new int[threads];
+			for(int i = 0; i < lines.length - 1; i++) {
+				String[] tokens = lines[i].split(" ");
+				int thread = Integer.parseInt(tokens[1]);
+				Assert.assertEquals(Integer.parseInt(tokens[3]), next[thread]++);
+			}
+			Assert.assertEquals(lines[lines.length - 1], "last");
+
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(file);
+			Assert.assertEquals(gzin.getMetadata().size(), 6);
+			Assert.assertEquals(gzin.getIndex().getUncompressedLength(), readFully(
+					new GZIPInputStream(new FileInputStream(file))).length);
+			Assert.assertEquals(new String(readFully(gzin.openCursor(100000l))), "last\n");
+			String rest = new String(readFully(gzin.openCursor(1999l)));
+			Assert.assertTrue(rest.indexOf("thread 0 record 1999\n") == -1);
+			Assert.assertTrue(rest.startsWith("thread ") && rest.indexOf("thread 0 record 2000\n") >= 0);
+			gzin.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testWriterConfig() {
+		try {
+			byte[] data = lines(0, 20000).getBytes();
+			File stored = new File("./target/testfile-config");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(new FileOutputStream(stored),
+					new GZipWriterConfig().setLevel(Deflater.BEST_COMPRESSION).setBufferSize(4096));
+			gzip.write(data, 0, data.length / 2);
+			gzip.setLevel(Deflater.NO_COMPRESSION);
+			gzip.addOffset(1l);
+			gzip.write(data, data.length / 2, data.length - data.length / 2);
+			gzip.close();
+			Assert.assertEquals(readFully(new GZIPInputStream(new FileInputStream(stored))), data);
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			long second = gzin.getMetadata().get(1l);
+			// first half is compressed, second half is stored
+			Assert.assertTrue(second < data.length / 8);
+			Assert.assertTrue(stored.length() - second > data.length / 2);
+			gzin.close();
+
+			File parallel = new File("./target/testfile-config-parallel");
+			ExecutorService executor = Executors.newFixedThreadPool(2);
+			GZipParallelOutputStreamRandomAccess pgzip = new GZipParallelOutputStreamRandomAccess(
+					new FileOutputStream(parallel), executor, 16 * 1024, 1, new GZipWriterConfig()
+					.setStrategy(Deflater.HUFFMAN_ONLY).setPrimeDictionary(false).setAdaptive(true));
+			for(int i = 0; i < data.length; i += 1000) {
+				pgzip.write(data, i, Math.min(1000, data.length - i));
+				if(i % 100000 == 0) {
+					pgzip.addOffset((long) i);
+				}
+			}
+			pgzip.close();
+			executor.shutdown();
+			Assert.assertEquals(readFully(new GZIPInputStream(new FileInputStream(parallel))), data);
+			try {
+				new GZipWriterConfig().setLevel(10);
+				Assert.fail();
+			} catch(IllegalArgumentException e) {
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testResourcePool() {
+		try {
+			GZipResourcePool pool = new GZipResourcePool(1);
+			Inflater inf = pool.borrowInflater();
+			pool.returnInflater(inf);
+			Assert.assertSame(pool.borrowInflater(), inf);
+			Deflater def = pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+			Deflater other = pool.borrowDeflater(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+			pool.returnDeflater(def);
+			// pool is full, so other is released
+			pool.returnDeflater(other);
+			Assert.assertSame(pool.borrowDeflater(Deflater.BEST_COMPRESSION, Deflater.FILTERED), def);
+			byte[] buf = pool.borrowBuffer();
+			pool.returnBuffer(buf);
+			pool.returnBuffer(new byte[10]);
+			Assert.assertSame(pool.borrowBuffer(), buf);
+
+			// readers and writers return pooled objects on close, so many short lived ones can
+			// share them
+			byte[] data = lines(0, 5000).getBytes();
+			File stored = new File("./target/testfile-pool");
+			for(int i = 0; i < 20; i++) {
+				GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(stored);
+				gzip.write(data, 0, data.length / 2);
+				gzip.addOffset(1l);
+				gzip.write(data, data.length / 2, data.length - data.length / 2);
+				gzip.close();
+				try {
+					gzip.write(data, 0, 1);
+					Assert.fail();
+				} catch(IOException e) {
+				}
+				GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+				gzin.jumpToIndex(1l);
+				byte[] expected = Arrays.copyOfRange(data, data.length / 2, data.length);
+				Assert.assertEquals(readFully(gzin), expected);
+			}
+
+			// closed writer does not touch its deflater, which another writer may have borrowed
+			GZipOutputStreamRandomAccess closed = new GZipOutputStreamRandomAccess(new ByteArrayOutputStream());
+			closed.close();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(bos);
+			gzip.write(data, 0, data.length / 2);
+			try {
+				closed.resetGzipStream();
+				Assert.fail();
+			} catch(IOException e) {
+			}
+			try {
+				closed.writeHeader();
+				Assert.fail();
+			} catch(IOException e) {
+			}
+			gzip.write(data, data.length / 2, data.length - data.length / 2);
+			gzip.close();
+			Assert.assertEquals(readFully(new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()))), data);
+
+			// underlying stream is closed even if writing of last member fails
+			final boolean[] failing = new boolean[1];
+			final boolean[] streamClosed = new boolean[1];
+			gzip = new GZipOutputStreamRandomAccess(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (failing[0]) {
+						throw new IOException("disk full");
+					}
+				}
+
+				@Override
+				public void close() {
+					streamClosed[0] = true;
+				}
+			});
+			gzip.write(data);
+			failing[0] = true;
+			try {
+				gzip.close();
+				Assert.fail();
+			} catch(IOException e) {
+			}
+			Assert.assertTrue(streamClosed[0]);
+			gzip.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testAppend() {
+		try {
+			File stored = new File("./target/testfile-append");
+			stored.delete();
+			GZipOutputStreamRandomAccess gzip = GZipOutputStreamRandomAccess.append(stored);
+			gzip.write(lines(0, 1000).getBytes());
+			gzip.addOffset(1l);
+			gzip.write(lines(1000, 2000).getBytes());
+			gzip.close();
+			gzip = GZipOutputStreamRandomAccess.append(stored);
+			gzip.write(lines(2000, 3000).getBytes());
+			gzip.addOffset(3l);
+			gzip.addKey("hour", 2l);
+			gzip.write(lines(3000, 4000).getBytes());
+			gzip.close();
+			byte[] data = lines(0, 4000).getBytes();
+			Assert.assertEquals(readFully(new GZIPInputStream(new FileInputStream(stored))), data);
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			Assert.assertEquals(gzin.getMetadata().size(), 2);
+			Assert.assertEquals(readFully(gzin.openCursor(3l)), lines(3000, 4000).getBytes());
+			Assert.assertEquals(readFully(gzin.openRange("hour", 2l, 2l)), lines(3000, 4000).getBytes());
+			gzin.seek(lines(0, 1000).length());
+			byte[] buf = new byte[10];
+			Assert.assertEquals(gzin.read(buf), 10);
+			Assert.assertEquals(new String(buf), "line 1000\n");
+			long dataLength = gzin.getIndex().getDataLength();
+			gzin.close();
+
+			// file without metadata at its end, e.g. of a writer which did not close, is inflated
+			// once to find uncompressed offsets
+			byte[] bytes = readFully(new FileInputStream(stored));
+			File truncated = writeFile("./target/testfile-append-truncated",
+					Arrays.copyOf(bytes, (int) dataLength));
+			gzip = GZipOutputStreamRandomAccess.append(truncated);
+			gzip.addOffset(4l);
+			gzip.write(lines(4000, 5000).getBytes());
+			gzip.close();
+			gzin = new GZipInputStreamRandomAccess(truncated);
+			Assert.assertTrue(gzin.getIndex().hasUncompressedOffsets());
+			Assert.assertEquals(gzin.getIndex().getUncompressedOffset(0), data.length);
+			gzin.seek(data.length);
+			Assert.assertEquals(readFully(gzin), lines(4000, 5000).getBytes());
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testIndexCheckpoints() {
+		try {
+			File stored = new File("./target/testfile-checkpoints");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(
+					new FileOutputStream(stored), new GZipWriterConfig().setCheckpointInterval(3));
+			for(int i = 0; i < 10; i++) {
+				gzip.addOffset((long) i);
+				gzip.write(lines(i * 100, (i + 1) * 100).getBytes());
+			}
+			gzip.close();
+			byte[] bytes = readFully(new FileInputStream(stored));
+			byte[] data = lines(0, 1000).getBytes();
+			Assert.assertEquals(readFully(new GZIPInputStream(new ByteArrayInputStream(bytes))), data);
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			Assert.assertEquals(gzin.getMetadata().size(), 10);
+			Assert.assertEquals(readFully(gzin.openCursor(7l)), lines(700, 1000).getBytes());
+			OffsetIndex full = gzin.getIndex();
+			gzin.close();
+
+			// writer died in middle of member 8, after checkpoint with keys up to 5
+			long member8 = full.getOffset(full.indexOf(8l));
+			File crashed = writeFile("./target/testfile-checkpoints-crashed",
+					Arrays.copyOf(bytes, (int) member8 + 20));
+			SeekableRandomAccessFile in = new SeekableRandomAccessFile(crashed);
+			OffsetIndex recovered = GZipIndexRecovery.recover(in);
+			in.close();
+			Assert.assertEquals(recovered.size(), 8);
+			Assert.assertEquals(recovered.getDataLength(), member8);
+			Assert.assertEquals(recovered.getUncompressedLength(), lines(0, 800).length());
+			for(int i = 0; i < 8; i++) {
+				int k = recovered.indexOf((long) i);
+				Assert.assertEquals(recovered.getOffset(k), full.getOffset(full.indexOf((long) i)));
+				Assert.assertEquals(recovered.getUncompressedOffset(k), lines(0, i * 100).length());
+			}
+
+			// damage which is not at end of file is reported instead of being cut off
+			// (in compressed data of member 6, and in header of member 7)
+			long[] damages = {full.getOffset(full.indexOf(6l)) + 100, full.getOffset(full.indexOf(7l))};
+			for(long pos : damages) {
+				byte[] damaged = Arrays.copyOf(bytes, (int) member8 + 20);
+				damaged[(int) pos] ^= 0xff;
+				File corrupt = writeFile("./target/testfile-checkpoints-corrupt", damaged);
+				try {
+					GZipIndexRecovery.repair(corrupt);
+					Assert.fail();
+				} catch(ZipException e) {
+				}
+				Assert.assertEquals(corrupt.length(), damaged.length);
+			}
+
+			// repaired file is readable with random access and can be appended to
+			GZipIndexRecovery.repair(crashed);
+			gzin = new GZipInputStreamRandomAccess(crashed);
+			Assert.assertEquals(gzin.getMetadata().size(), 8);
+			Assert.assertEquals(readFully(gzin.openCursor(6l)), lines(600, 800).getBytes());
+			gzin.close();
+			gzip = GZipOutputStreamRandomAccess.append(crashed);
+			gzip.addOffset(8l);
+			gzip.write(lines(800, 1000).getBytes());
+			gzip.close();
+			Assert.assertEquals(readFully(new GZIPInputStream(new FileInputStream(crashed))), data);
+
+			// writer died after complete members which follow last checkpoint, and file is appended
+			// to without repair: keys of checkpoints and of headers are kept
+			File unrepaired = writeFile("./target/testfile-checkpoints-append",
+					Arrays.copyOf(bytes, (int) member8));
+			gzip = GZipOutputStreamRandomAccess.append(unrepaired);
+			gzip.addOffset(8l);
+			gzip.write(lines(800, 1000).getBytes());
+			gzip.close();
+			gzin = new GZipInputStreamRandomAccess(unrepaired);
+			Assert.assertEquals(gzin.getMetadata().size(), 9);
+			for(int i = 0; i < 9; i++) {
+				Assert.assertEquals(gzin.getIndex().getUncompressedOffset(gzin.getIndex().indexOf((long) i)),
+						lines(0, i * 100).length());
+			}
+			Assert.assertEquals(readFully(gzin.openCursor(2l)), lines(200, 1000).getBytes());
+			gzin.close();
+
+			// writer died right after a checkpoint, so file ends with header of next member
+			File checkpointed = new File("./target/testfile-checkpoints-manual");
+			FileOutputStream fos = new FileOutputStream(checkpointed);
+			gzip = new GZipOutputStreamRandomAccess(fos, new GZipWriterConfig());
+			for(int i = 0; i < 4; i++) {
+				gzip.addOffset((long) i);
+				gzip.write(lines(i * 100, (i + 1) * 100).getBytes());
+				gzip.checkpoint();
+			}
+			fos.close();
+			in = new SeekableRandomAccessFile(checkpointed);
+			recovered = GZipIndexRecovery.recover(in);
+			in.close();
+			Assert.assertEquals(recovered.size(), 4);
+			Assert.assertEquals(recovered.getUncompressedLength(), lines(0, 400).length());
+
+			// file which ends with a checkpoint is read by following chain of checkpoints
+			bytes = readFully(new FileInputStream(checkpointed));
+			checkpointed = writeFile("./target/testfile-checkpoints-manual",
+					Arrays.copyOf(bytes, (int) recovered.getDataLength()));
+			in = new SeekableRandomAccessFile(checkpointed);
+			OffsetIndex chain = IndexFooter.read(in);
+			in.close();
+			Assert.assertEquals(chain.size(), 4);
+			Assert.assertEquals(chain.getUncompressedOffset(chain.indexOf(3l)), lines(0, 300).length());
+			Assert.assertEquals(chain.getUncompressedLength(), lines(0, 400).length());
+			gzin = new GZipInputStreamRandomAccess(checkpointed);
+			Assert.assertEquals(readFully(gzin.openCursor(2l)), lines(200, 400).getBytes());
+			gzin.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testVerify() {
+		try {
+			File stored = new File("./target/testfile-verify");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(stored);
+			for(int i = 0; i < 10; i++) {
+				gzip.addOffset((long) i);
+				gzip.write(lines(i * 100, (i + 1) * 100).getBytes());
+			}
+			gzip.close();
+			Assert.assertTrue(GZipVerifier.verify(stored).isEmpty());
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			OffsetIndex index = gzin.getIndex();
+			Assert.assertTrue(gzin.verify(2).isEmpty());
+			gzin.close();
+
+			// CRC of member 3 and compressed data of member 7 are damaged
+			byte[] bytes = readFully(new FileInputStream(stored));
+			long member3 = index.getOffset(index.indexOf(3l));
+			long member4 = index.getOffset(index.indexOf(4l));
+			long member7 = index.getOffset(index.indexOf(7l));
+			long member8 = index.getOffset(index.indexOf(8l));
+			bytes[(int) member4 - 8] ^= 1;
+			int middle = (int) (member7 + member8) / 2;
+			for(int i = middle; i < middle + 16; i++) {
+				bytes[i] = (byte) 0xff;
+			}
+			File damaged = writeFile("./target/testfile-verify-damaged", bytes);
+			List<GZipVerifier.BadMember> bad = GZipVerifier.verify(damaged);
+			Assert.assertEquals(bad.size(), 2);
+			Assert.assertEquals(bad.get(0).getKeys(), new long[] {3l});
+			Assert.assertEquals(bad.get(0).getMemberStart(), member3);
+			Assert.assertTrue(bad.get(0).getError() instanceof ZipException);
+			Assert.assertEquals(bad.get(1).getKeys(), new long[] {7l});
+			Assert.assertEquals(bad.get(1).getSegmentStart(), member7);
+			gzin = new GZipInputStreamRandomAccess(damaged);
+			Assert.assertEquals(gzin.verify(4).size(), 2);
+			gzin.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMemberStats() {
+		try {
+			File stored = new File("./target/testfile-stats");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(
+					new FileOutputStream(stored), new GZipWriterConfig().setRecordDelimiter('\n'));
+			for(int i = 0; i < 5; i++) {
+				gzip.addOffset((long) i * 100);
+				gzip.write(lines(i * 100, (i + 1) * 100 + i).getBytes());
+				gzip.addRecordKey(i * 1000);
+				gzip.addRecordKey(i * 1000 + 999);
+			}
+			gzip.close();
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			List<MemberStats> stats = gzin.getMemberStats();
+			Assert.assertEquals(stats.size(), 5);
+			long compressed = 0;
+			long uncompressed = 0;
+			for(int i = 0; i < 5; i++) {
+				MemberStats s = stats.get(i);
+				Assert.assertEquals(s.getKey(), i * 100);
+				Assert.assertEquals(s.getRecordCount(), 100 + i);
+				Assert.assertEquals(s.getUncompressedOffset(), uncompressed);
+				Assert.assertEquals(s.getUncompressedLength(), lines(i * 100, (i + 1) * 100 + i).length());
+				Assert.assertTrue(s.hasKeyRange());
+				Assert.assertEquals(s.getMinKey(), i * 1000);
+				Assert.assertEquals(s.getMaxKey(), i * 1000 + 999);
+				Assert.assertEquals(s.getOffset(), gzin.getIndex().floorOffset(i * 100));
+				compressed += s.getCompressedLength();
+				uncompressed += s.getUncompressedLength();
+			}
+			Assert.assertEquals(uncompressed, gzin.getIndex().getUncompressedLength());
+			Assert.assertEquals(stats.get(0).getOffset() + compressed, gzin.getIndex().getDataLength());
+			gzin.close();
+
+			// statistics of keys whose data ended before a checkpoint are recovered, and survive
+			// appending
+			gzip = new GZipOutputStreamRandomAccess(new FileOutputStream(stored),
+					new GZipWriterConfig().setCheckpointInterval(1));
+			gzip.addOffset(1l);
+			gzip.write(lines(0, 10).getBytes());
+			gzip.addRecords(10);
+			gzip.addOffset(2l);
+			gzip.write(lines(10, 15).getBytes());
+			gzip.addRecords(5);
+			gzip.checkpoint();
+			gzip.addOffset(3l);
+			gzip.write(lines(15, 20).getBytes());
+			gzip.flush();
+			SeekableRandomAccessFile in = new SeekableRandomAccessFile(stored);
+			OffsetIndex recovered = GZipIndexRecovery.recover(in);
+			in.close();
+			gzip.close();
+			Assert.assertEquals(recovered.getRecordCount(recovered.indexOf(1l)), 10);
+			Assert.assertEquals(recovered.getRecordCount(recovered.indexOf(2l)), -1);
+			// member of key 3 is not complete yet
+			Assert.assertEquals(recovered.size(), 2);
+			gzip = GZipOutputStreamRandomAccess.append(stored);
+			gzip.addOffset(4l);
+			gzip.write(lines(20, 30).getBytes());
+			gzip.close();
+			gzin = new GZipInputStreamRandomAccess(stored);
+			stats = gzin.getMemberStats();
+			Assert.assertEquals(stats.size(), 4);
+			Assert.assertEquals(stats.get(1).getRecordCount(), 5);
+			Assert.assertFalse(stats.get(1).hasKeyRange());
+			Assert.assertEquals(stats.get(3).getRecordCount(), -1);
+			Assert.assertEquals(stats.get(3).getUncompressedLength(), lines(20, 30).length());
+			gzin.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRecordReader() {
+		try {
+			File stored = new File("./target/testfile-records");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(stored);
+			for(int i = 0; i < 10; i++) {
+				gzip.addOffset((long) i);
+				gzip.write(lines(i * 1000, (i + 1) * 1000).getBytes());
+			}
+			gzip.write("last".getBytes());
+			gzip.close();
+			GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(stored);
+			gzin.jumpToIndex(3l);
+			GZipRecordReader records = new GZipRecordReader(gzin);
+			int i = 3000;
+			while(records.next()) {
+				String record = new String(records.getBuffer(), records.getOffset(), records.getLength());
+				Assert.assertEquals(record, i < 10000 ? "line " + i : "last");
+				i++;
+			}
+			Assert.assertEquals(i, 10001);
+			Assert.assertEquals(records.getRecordCount(), 7001);
+			Assert.assertFalse(records.next());
+			records.close();
+
+			// length prefixed records, one of them larger than buffer
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			byte[] large = new byte[200 * 1024];
+			new Random(7).nextBytes(large);
+			dos.writeInt(3);
+			dos.write("abc".getBytes());
+			dos.writeInt(large.length);
+			dos.write(large);
+			dos.writeInt(0);
+			records = new GZipRecordReader(new ByteArrayInputStream(bos.toByteArray()),
+					GZipRecordReader.LENGTH_PREFIXED);
+			Assert.assertTrue(records.next());
+			Assert.assertEquals(new String(records.getBuffer(), records.getOffset(), records.getLength()), "abc");
+			Assert.assertTrue(records.next());
+			Assert.assertEquals(Arrays.copyOfRange(records.getBuffer(), records.getOffset(),
+					records.getOffset() + records.getLength()), large);
+			Assert.assertTrue(records.next());
+			Assert.assertEquals(records.getLength(), 0);
+			Assert.assertFalse(records.next());
+			records.close();
+			records = new GZipRecordReader(new ByteArrayInputStream(bos.toByteArray(), 0, 20),
+					GZipRecordReader.LENGTH_PREFIXED);
+			Assert.assertTrue(records.next());
+			try {
+				records.next();
+				Assert.fail();
+			} catch(EOFException e) {
+			}
+			records.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	private static String lines(int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = from; i < to; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	static File writeFile(String name, byte[] bytes) throws Exception {
+		File file = new File(name);
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(bytes);
+		fos.close();
+		return file;
+	}
+
+	static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len;
+		while((len = in.read(buf)) != -1) {
+			bos.write(buf, 0, len);
+		}
+		in.close();
+		return bos.toByteArray();
+	}
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.Decompressor;
+import io.gzinga.GZipResourcePool;
+import io.gzinga.SeekableInputStream;
+
+/**
+ * This class reads gzip members from a SeekableInputStream using a Hadoop gzip Decompressor, e.g.
+ * native zlib decompressor of GzipCodec. Decompressor handles one member at a time: once it is
+ * finished, bytes it has not consumed tell exact end of member, which is start of next one. So like
+ * GZipMemberInputStream, this stream knows start of member of data last read.
+ *
+ * If pooled is set, decompressor is returned to CodecPool when stream is closed. Otherwise it
+ * belongs to caller and is only reset.
+ */
+final class DecompressorMemberInputStream extends InputStream {
+
+	private final SeekableInputStream in;
+	private final Decompressor decompressor;
+	private final boolean pooled;
+	private final byte[] input = GZipResourcePool.getShared().borrowBuffer();
+	/*
+	 * input[0, inputLen) was last given to decompressor, and input[0] is at inputStart in file.
+	 */
+	private int inputLen = 0;
+	private long inputStart;
+	private long memberStart;
+	private final byte[] single = new byte[1];
+	private boolean eof = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates reader positioned at current position of given stream, which should be start of a member.
+	 * @param in
+	 * @param decompressor gzip decompressor in its initial state
+	 * @param pooled whether decompressor was borrowed from CodecPool
+	 * @throws IOException
+	 */
+	DecompressorMemberInputStream(SeekableInputStream in, Decompressor decompressor, boolean pooled)
+			throws IOException {
+		this.in = in;
+		this.decompressor = decompressor;
+		this.pooled = pooled;
+		this.inputStart = in.getPos();
+		this.memberStart = inputStart;
+	}
+
+	/**
+	 * @return position in compressed file where member of data last read starts
+	 */
+	long getMemberStart() {
+		return memberStart;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		return n == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+		while (!eof) {
+			// needsInput() of some decompressors is also true while they still hold a partial header,
+			// so it is only trusted once decompress has made no progress
+			int n = decompressor.decompress(buf, off, len);
+			if (n > 0) {
+				return n;
+			}
+			if (decompressor.finished()) {
+				nextMember();
+			} else if (decompressor.needsDictionary()) {
+				throw new IOException("Corrupt member at " + memberStart);
+			} else if (decompressor.needsInput() && !fill()) {
+				throw new IOException("Unexpected end of file in member at " + memberStart);
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (pooled) {
+				CodecPool.returnDecompressor(decompressor);
+			} else {
+				decompressor.reset();
+			}
+			GZipResourcePool.getShared().returnBuffer(input);
+			in.close();
+		}
+	}
+
+	/*
+	 * Starts next member with bytes which decompressor has not consumed, or with next bytes of file
+	 * if there are none.
+	 */
+	private void nextMember() throws IOException {
+		int remaining = decompressor.getRemaining();
+		memberStart = inputStart + inputLen - remaining;
+		decompressor.reset();
+		if (remaining > 0) {
+			System.arraycopy(input, inputLen - remaining, input, 0, remaining);
+			inputStart = memberStart;
+			inputLen = remaining;
+			decompressor.setInput(input, 0, inputLen);
+		} else if (!fill()) {
+			eof = true;
+		}
+	}
+
+	/*
+	 * Reads next bytes of file into input and gives them to decompressor. Returns false at end of file.
+	 */
+	private boolean fill() throws IOException {
+		int n = in.read(input, 0, input.length);
+		if (n == -1) {
+			return false;
+		}
+		inputStart += inputLen;
+		inputLen = n;
+		decompressor.setInput(input, 0, inputLen);
+		return true;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
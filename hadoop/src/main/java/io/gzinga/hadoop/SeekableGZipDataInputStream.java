@@ -19,6 +19,7 @@ package io.gzinga.hadoop;
 import java.io.IOException;
 
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import io.gzinga.SeekableInputStream;
 
 /*
@@ -40,6 +41,7 @@ public class SeekableGZipDataInputStream extends SeekableInputStream {
 
 	FSDataInputStream fsIn;
 	private long len = -1l;
+	private String identity;
 	
 	public SeekableGZipDataInputStream(FSDataInputStream in) {
 		this.fsIn = in;
@@ -49,6 +51,22 @@ public class SeekableGZipDataInputStream extends SeekableInputStream {
 		this.fsIn = in;
 		this.len = len;
 	}
+
+	/**
+	 * File status provides length of file as well as identity (path, length and modification time)
+	 * used for caching metadata of file in OffsetIndexCache.
+	 * @param in
+	 * @param status
+	 */
+	public SeekableGZipDataInputStream(FSDataInputStream in, FileStatus status) {
+		this(in, status.getLen());
+		this.identity = status.getPath() + ":" + status.getLen() + ":" + status.getModificationTime();
+	}
+
+	@Override
+	public String getIdentity() {
+		return this.identity;
+	}
 	
 	@Override
 	public void seek(long offset) throws IOException {
@@ -89,6 +107,20 @@ public class SeekableGZipDataInputStream extends SeekableInputStream {
     }
     
 
+	/**
+	 * Reads using positioned read of FSDataInputStream, which does not change file pointer position
+	 * and can be used by multiple threads concurrently.
+	 */
+	@Override
+	public int read(long position, byte[] buf, int off, int len) throws IOException {
+		return fsIn.read(position, buf, off, len);
+	}
+
+	@Override
+	public void readFully(long position, byte[] buf, int off, int len) throws IOException {
+		fsIn.readFully(position, buf, off, len);
+	}
+
 	@Override
 	public void close() throws IOException {
 		fsIn.close();
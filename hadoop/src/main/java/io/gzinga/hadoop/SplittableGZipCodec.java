@@ -16,78 +16,160 @@
 
 package io.gzinga.hadoop;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
+import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.io.compress.SplitCompressionInputStream;
 import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibDecompressor;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
 import io.gzinga.GZipInputStreamRandomAccess;
+import io.gzinga.HeaderLocator;
 import io.gzinga.InputStreamConverter;
+import io.gzinga.OffsetIndex;
+import io.gzinga.SeekableCursor;
 
+/**
+ * Codec which splits gzip files written by GZipOutputStreamRandomAccess at member boundaries. Start
+ * and end of every split are moved forward to nearest member start. Member offsets are taken from
+ * metadata of file, so a split costs a read of metadata instead of scanning compressed data for
+ * headers. Scanning is only used when length of file or its metadata is not available.
+ *
+ * Data is decompressed by native zlib when it is available, using Decompressor provided by caller or
+ * one borrowed from CodecPool, and by GZipInputStreamRandomAccess otherwise. Both keep track of member
+ * boundaries, so position of split stream is same either way.
+ */
 public class SplittableGZipCodec extends GzipCodec implements SplittableCompressionCodec {
 
-	private static int buf_length = 32 * 1024;
-	
-	private long getHeader(SeekableGZipDataInputStream in, long loc)  throws IOException {
-		long position = loc;
-		long newPos = -1;
-		while(true) {
-			byte[] buf = new byte[buf_length];
-			in.seek(position);
-			
-			int lastIndex = 0;
-			int totalLen = 0;
-			while(true) {
-				int len = in.read(buf, lastIndex, buf_length - lastIndex);
-				if(len == -1) {
-					break;
-				}
-				totalLen += len;
-				if(totalLen != buf_length) {
-						lastIndex = totalLen;
-				} else {
-					break;
-				}
-			}
-			
-			if(totalLen == 0) {
-				return position;
-			}
-			int headerIndex = InputStreamConverter.firstIndexOf(buf, InputStreamConverter.headerbytes, 0, totalLen - 1);
-			if(headerIndex == -1) {
-				position += (totalLen - InputStreamConverter.headerbytes.length);
-			} else {
-				newPos = position + headerIndex;
-				break;
-			}
+	/*
+	 * Returns length of file, or -1 if it can not be found from stream.
+	 */
+	private static long getLength(FSDataInputStream in) throws IOException {
+		if(in instanceof HdfsDataInputStream) {
+			return ((HdfsDataInputStream)in).getVisibleLength();
+		}
+		int available = in.available();
+		if(available == Integer.MAX_VALUE) {
+			return -1;
+		}
+		return in.getPos() + available;
+	}
+
+	/*
+	 * Returns start offsets of all members which have data, in increasing order, or null if file
+	 * has no metadata. Metadata is read with positioned reads, so position of stream is not changed.
+	 */
+	private static long[] getMemberOffsets(SeekableGZipDataInputStream in) {
+		SeekableCursor cursor = new SeekableCursor(in);
+		try {
+			cursor.seek(0);
+			OffsetIndex index = new InputStreamConverter(cursor, true).getIndex();
+			long[] offsets = index.sortedOffsets();
+			long[] members = new long[offsets.length + 1];
+			System.arraycopy(offsets, 0, members, 1, offsets.length);
+			return members;
+		} catch(IllegalArgumentException e) {
+			return null;
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Returns first member offset at or after given location, or length of file if there is none.
+	 */
+	private static long ceilingMember(long[] members, long loc, long len) {
+		int i = Arrays.binarySearch(members, loc);
+		if(i < 0) {
+			i = -(i + 1);
 		}
-		return newPos;
+		return i < members.length ? members[i] : len;
 	}
-	
+
 	@Override
 	public SplitCompressionInputStream createInputStream(InputStream arg0,
 			Decompressor arg1, long start, long end, READ_MODE arg4)
 			throws IOException {
-		SeekableGZipDataInputStream sfIn = new SeekableGZipDataInputStream((FSDataInputStream)arg0);
-		long newStart = getHeader(sfIn, start);
-		long newEnd = getHeader(sfIn, end);
+		FSDataInputStream fsIn = (FSDataInputStream)arg0;
+		long len = getLength(fsIn);
+		SeekableGZipDataInputStream sfIn = len == -1 ? new SeekableGZipDataInputStream(fsIn)
+				: new SeekableGZipDataInputStream(fsIn, len);
+		long[] members = len == -1 ? null : getMemberOffsets(sfIn);
+		long newStart;
+		long newEnd;
+		if(members != null) {
+			newStart = ceilingMember(members, start, len);
+			newEnd = ceilingMember(members, end, len);
+		} else {
+			newStart = HeaderLocator.findHeader(sfIn, start);
+			newEnd = HeaderLocator.findHeader(sfIn, end);
+		}
+		sfIn.seek(newStart);
+		if(sfIn.read() == -1) {
+			// no member starts in this split or after it
+			return new SplittableGzipInputStream((GZipInputStreamRandomAccess) null, newStart, newStart);
+		}
 		sfIn.seek(newStart);
+		Decompressor decompressor = arg1;
+		boolean pooled = false;
+		if(decompressor == null && getConf() != null && ZlibFactory.isNativeZlibLoaded(getConf())) {
+			decompressor = CodecPool.getDecompressor(this);
+			pooled = true;
+		}
+		if(decompressor instanceof ZlibDecompressor) {
+			decompressor.reset();
+			return new SplittableGzipInputStream(
+					new DecompressorMemberInputStream(sfIn, decompressor, pooled), newStart, newEnd);
+		}
+		if(pooled) {
+			CodecPool.returnDecompressor(decompressor);
+		}
 		GZipInputStreamRandomAccess gzin = new GZipInputStreamRandomAccess(sfIn, false);		
 		return new SplittableGzipInputStream(gzin, newStart, newEnd);
 	}
 
+	/*
+	 * Position reported by this stream is start of member of last read data plus one, so it is at
+	 * most end of split while data of members before end is read, and is past end as soon as first
+	 * data of member at end is read. LineRecordReader then reads exactly one record which starts in
+	 * member at end, which is the record skipped by reader of next split.
+	 */
 	private static final class SplittableGzipInputStream extends SplitCompressionInputStream {
 
-		private long lastRead = -1;
+		private final GZipInputStreamRandomAccess gzin;
+		private final DecompressorMemberInputStream zin;
+		private long pos;
 		
-		public SplittableGzipInputStream(InputStream in, long start, long end)
+		/*
+		 * gzin is null for a split which has no data.
+		 */
+		public SplittableGzipInputStream(GZipInputStreamRandomAccess gzin, long start, long end)
+				throws IOException {
+			super(gzin != null ? gzin : new ByteArrayInputStream(new byte[0]), start, end);
+			this.gzin = gzin;
+			this.zin = null;
+			init(start, end);
+		}
+
+		public SplittableGzipInputStream(DecompressorMemberInputStream zin, long start, long end)
 				throws IOException {
-			super(in, start, end);
+			super(zin, start, end);
+			this.gzin = null;
+			this.zin = zin;
+			init(start, end);
+		}
+
+		private void init(long start, long end) throws IOException {
 			setStart(start);
 			setEnd(end);
+			pos = start;
 		}
 
 		@Override
@@ -97,19 +179,35 @@ public class SplittableGZipCodec extends GzipCodec implements SplittableCompress
 
 		@Override
 		public long getPos() throws IOException {
-			return lastRead;
+			return pos;
 		}
 
 		@Override
 		public int read(byte[] arg0, int arg1, int arg2) throws IOException {
-			lastRead = ((GZipInputStreamRandomAccess)in).getPos();
-			return in.read(arg0, arg1, arg2);
+			if(gzin == null && zin == null) {
+				return -1;
+			}
+			int n = in.read(arg0, arg1, arg2);
+			if(n > 0) {
+				pos = getMemberStart() + 1;
+			}
+			return n;
 		}
 
 		@Override
 		public int read() throws IOException {
-			lastRead = ((GZipInputStreamRandomAccess)in).getPos();
-			return in.read();
-		}		
+			if(gzin == null && zin == null) {
+				return -1;
+			}
+			int b = in.read();
+			if(b != -1) {
+				pos = getMemberStart() + 1;
+			}
+			return b;
+		}
+
+		private long getMemberStart() {
+			return zin != null ? zin.getMemberStart() : gzin.getMemberStart();
+		}
 	}
 }
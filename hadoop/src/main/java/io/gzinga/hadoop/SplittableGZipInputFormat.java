@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.gzinga.hadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import io.gzinga.InputStreamConverter;
+import io.gzinga.OffsetIndex;
+
+/**
+ * This class plans splits of files read with SplittableGZipCodec by uncompressed size instead of
+ * compressed size. Uncompressed length of every member is taken from uncompressed offsets in
+ * metadata of file, and consecutive members are grouped into splits of roughly equal uncompressed
+ * length. Tiny members are thereby coalesced into one split and a large member gets a split of its
+ * own. Every split starts and ends at a member boundary.
+ *
+ * Target uncompressed size of a split can be set with gzinga.split.uncompressed.bytes. By default,
+ * the number of splits is the same as for splits computed by compressed size. Files which are not
+ * compressed with SplittableGZipCodec or have no metadata, and files whose metadata has no
+ * uncompressed offsets (e.g. written by earlier versions), are split as by TextInputFormat.
+ */
+public class SplittableGZipInputFormat extends TextInputFormat {
+
+	public static final String SPLIT_UNCOMPRESSED_BYTES = "gzinga.split.uncompressed.bytes";
+
+	/*
+	 * Last split may be up to 10% larger than target, same as FileInputFormat.
+	 */
+	private static final double SPLIT_SLOP = 1.1;
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException {
+		Configuration conf = job.getConfiguration();
+		CompressionCodecFactory factory = new CompressionCodecFactory(conf);
+		Map<Path, List<InputSplit>> planned = new HashMap<Path, List<InputSplit>>();
+		for(FileStatus file : listStatus(job)) {
+			CompressionCodec codec = factory.getCodec(file.getPath());
+			if(codec instanceof SplittableGZipCodec && file.getLen() > 0) {
+				List<InputSplit> splits = planSplits(job, file);
+				if(splits != null) {
+					planned.put(file.getPath(), splits);
+				}
+			}
+		}
+		List<InputSplit> splits = super.getSplits(job);
+		if(planned.isEmpty()) {
+			return splits;
+		}
+		List<InputSplit> result = new ArrayList<InputSplit>();
+		for(InputSplit split : splits) {
+			Path path = ((FileSplit)split).getPath();
+			if(!planned.containsKey(path)) {
+				result.add(split);
+			} else if(planned.get(path) != null) {
+				result.addAll(planned.get(path));
+				// splits of a file are added only once
+				planned.put(path, null);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Returns splits of given file, or null if file has no metadata or its metadata has no
+	 * uncompressed offsets. Sizes of members could only be found by walking every member of such
+	 * file, since ISIZE of last member before a key covers only that member.
+	 */
+	private List<InputSplit> planSplits(JobContext job, FileStatus file) throws IOException {
+		Path path = file.getPath();
+		FileSystem fs = path.getFileSystem(job.getConfiguration());
+		long len = file.getLen();
+		long[] members;
+		long[] sizes;
+		FSDataInputStream fsIn = fs.open(path);
+		try {
+			OffsetIndex index;
+			try {
+				index = new InputStreamConverter(new SeekableGZipDataInputStream(fsIn, file), true).getIndex();
+			} catch(IllegalArgumentException e) {
+				return null;
+			}
+			if(!index.hasUncompressedOffsets()) {
+				return null;
+			}
+			members = getMembers(index, len);
+			sizes = getSizes(index, members);
+		} finally {
+			fsIn.close();
+		}
+
+		long total = 0;
+		for(long size : sizes) {
+			total += size;
+		}
+		long target = job.getConfiguration().getLong(SPLIT_UNCOMPRESSED_BYTES, -1);
+		if(target <= 0) {
+			long splitSize = computeSplitSize(file.getBlockSize(), Math.max(getFormatMinSplitSize(),
+					getMinSplitSize(job)), getMaxSplitSize(job));
+			long count = Math.max(1, (len + splitSize - 1) / splitSize);
+			target = Math.max(1, total / count);
+		}
+
+		BlockLocation[] locations = fs.getFileBlockLocations(file, 0, len);
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		for(long[] bounds : plan(members, sizes, target, len)) {
+			String[] hosts = locations.length == 0 ? new String[0]
+					: locations[getBlockIndex(locations, bounds[0])].getHosts();
+			splits.add(makeSplit(path, bounds[0], bounds[1] - bounds[0], hosts));
+		}
+		return splits;
+	}
+
+	/*
+	 * Returns distinct member offsets in increasing order, starting with 0 and ending with end of
+	 * data members.
+	 */
+	static long[] getMembers(OffsetIndex index, long len) {
+		long end = index.getDataLength() == -1 ? len : index.getDataLength();
+		long[] offsets = index.sortedOffsets();
+		long[] members = new long[offsets.length + 2];
+		int n = 0;
+		members[n++] = 0;
+		for(long offset : offsets) {
+			if(offset > members[n - 1] && offset < end) {
+				members[n++] = offset;
+			}
+		}
+		members[n++] = end;
+		long[] result = new long[n];
+		System.arraycopy(members, 0, result, 0, n);
+		return result;
+	}
+
+	/*
+	 * Returns uncompressed size of each member from uncompressed offsets in metadata. Trailer of
+	 * member before an index checkpoint is not at end of member, so this is used whenever metadata
+	 * has uncompressed offsets.
+	 */
+	static long[] getSizes(OffsetIndex index, long[] members) {
+		Map<Long, Long> uncompressed = new HashMap<Long, Long>();
+		for(int i = 0; i < index.size(); i++) {
+			uncompressed.put(index.getOffset(i), index.getUncompressedOffset(i));
+		}
+		uncompressed.put(0L, 0L);
+		uncompressed.put(members[members.length - 1], index.getUncompressedLength());
+		long[] sizes = new long[members.length - 1];
+		for(int i = 0; i < sizes.length; i++) {
+			sizes[i] = uncompressed.get(members[i + 1]) - uncompressed.get(members[i]);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Groups consecutive members into splits, so that uncompressed size of each split is at least
+	 * target, and last split is extended to end of file.
+	 * @param members offsets of members, followed by end of data members
+	 * @param sizes uncompressed size of each member
+	 * @param target uncompressed size of a split
+	 * @param len length of file
+	 * @return start and end of each split
+	 */
+	static List<long[]> plan(long[] members, long[] sizes, long target, long len) {
+		long remaining = 0;
+		for(long size : sizes) {
+			remaining += size;
+		}
+		List<long[]> splits = new ArrayList<long[]>();
+		long start = 0;
+		long current = 0;
+		for(int i = 0; i < sizes.length; i++) {
+			current += sizes[i];
+			remaining -= sizes[i];
+			// rest of file should not end up as a tiny last split
+			if(current >= target && remaining > target * (SPLIT_SLOP - 1)) {
+				splits.add(new long[] {start, members[i + 1]});
+				start = members[i + 1];
+				current = 0;
+			}
+		}
+		splits.add(new long[] {start, len});
+		return splits;
+	}
+}
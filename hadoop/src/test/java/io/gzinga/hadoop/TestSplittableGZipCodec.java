@@ -17,8 +17,12 @@
 package io.gzinga.hadoop;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -26,8 +30,13 @@ import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.io.compress.zlib.BuiltInGzipDecompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.reduce.IntSumReducer;
 import io.gzinga.GZipOutputStreamRandomAccess;
@@ -36,6 +45,152 @@ import org.testng.annotations.Test;
 
 public class TestSplittableGZipCodec {
 
+	@Test
+	public void testSplitBoundaries() {
+		try {
+			Configuration conf = new Configuration();
+			conf.set("fs.defaultFS", "file:///");
+			FileSystem fs = FileSystem.get(conf);
+			fs.mkdirs(new Path("target/test"));
+			Path path = new Path("target/test/testfile3.gz");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(fs.create(path));
+			for(int i = 1; i <= 10000; i++) {
+				gzip.write(("This is line " + i + "\n").getBytes());
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+			}
+			Set<Long> members = new HashSet<Long>(gzip.getOffsetMap().values());
+			members.add(0l);
+			gzip.close();
+			long len = fs.getFileStatus(path).getLen();
+			SplittableGZipCodec codec = new SplittableGZipCodec();
+			codec.setConf(conf);
+			for(long start = 0; start < len; start += 777) {
+				SplitCompressionInputStream in = codec.createInputStream(fs.open(path), null, start,
+						Math.min(start + 777, len), SplittableCompressionCodec.READ_MODE.BYBLOCK);
+				long adjusted = in.getAdjustedStart();
+				Assert.assertTrue(adjusted >= start);
+				if(adjusted < len) {
+					Assert.assertTrue(members.contains(adjusted));
+					Assert.assertTrue(new BufferedReader(new InputStreamReader(in)).readLine().startsWith("This is line "));
+				}
+				in.close();
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			FileUtil.fullyDelete(new File("target/test/testfile3.gz"));
+		}
+	}
+
+	@Test
+	public void testDecompressorStream() {
+		try {
+			Configuration conf = new Configuration();
+			conf.set("fs.defaultFS", "file:///");
+			FileSystem fs = FileSystem.get(conf);
+			fs.mkdirs(new Path("target/test"));
+			Path path = new Path("target/test/testfile4.gz");
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(fs.create(path));
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			for(int i = 1; i <= 10000; i++) {
+				byte[] line = ("This is line " + i + "\n").getBytes();
+				gzip.write(line);
+				expected.write(line);
+				if(i % 100 == 0) {
+					gzip.addOffset(i/100l);
+				}
+			}
+			Set<Long> members = new HashSet<Long>(gzip.getOffsetMap().values());
+			members.add(0l);
+			gzip.close();
+			long len = fs.getFileStatus(path).getLen();
+			// any gzip Decompressor works, native zlib is used by codec when it is loaded
+			DecompressorMemberInputStream in = new DecompressorMemberInputStream(
+					new SeekableGZipDataInputStream(fs.open(path), len), new BuiltInGzipDecompressor(), false);
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			byte[] buf = new byte[333];
+			long last = 0;
+			int n;
+			while((n = in.read(buf, 0, buf.length)) != -1) {
+				actual.write(buf, 0, n);
+				Assert.assertTrue(members.contains(in.getMemberStart()));
+				Assert.assertTrue(in.getMemberStart() >= last);
+				last = in.getMemberStart();
+			}
+			in.close();
+			Assert.assertEquals(actual.toByteArray(), expected.toByteArray());
+			// member of key 100 has no data
+			Assert.assertEquals(last, (long) gzip.getOffsetMap().get(99l));
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			FileUtil.fullyDelete(new File("target/test/testfile4.gz"));
+		}
+	}
+
+	@Test
+	public void testSplitPlanner() {
+		try {
+			Configuration conf = new Configuration();
+			conf.set("fs.defaultFS", "file:///");
+			FileSystem fs = FileSystem.get(conf);
+			fs.mkdirs(new Path("target/test"));
+			GZipOutputStreamRandomAccess gzip = new GZipOutputStreamRandomAccess(
+					fs.create(new Path("target/test/testfile4.gz")));
+			String str = "This is line\n";
+			long key = 0;
+			for(int i = 1; i <= 10000; i++) {
+				gzip.write(str.getBytes());
+				// members of very different sizes
+				if(i % 2000 == 0 || (i > 2000 && i < 2100)) {
+					gzip.addOffset(++key);
+				}
+			}
+			gzip.close();
+
+			conf.set("mapreduce.framework.name", "local");
+			conf.set("io.compression.codecs","io.gzinga.hadoop.SplittableGZipCodec");
+			conf.setLong(SplittableGZipInputFormat.SPLIT_UNCOMPRESSED_BYTES, 20000);
+			Job job = Job.getInstance(conf, "word count");
+			FileInputFormat.addInputPath(job, new Path("target/test/testfile4.gz"));
+			List<InputSplit> splits = new SplittableGZipInputFormat().getSplits(job);
+			Assert.assertTrue(splits.size() > 3);
+			long end = 0;
+			for(InputSplit split : splits) {
+				FileSplit fileSplit = (FileSplit)split;
+				Assert.assertEquals(fileSplit.getStart(), end);
+				end = fileSplit.getStart() + fileSplit.getLength();
+			}
+			Assert.assertEquals(end, fs.getFileStatus(new Path("target/test/testfile4.gz")).getLen());
+
+			job.setJarByClass(WordCount.class);
+			job.setInputFormatClass(SplittableGZipInputFormat.class);
+			job.setMapperClass(WordCount.TokenizerMapper.class);
+			job.setCombinerClass(IntSumReducer.class);
+			job.setReducerClass(IntSumReducer.class);
+			job.setOutputKeyClass(Text.class);
+			job.setOutputValueClass(IntWritable.class);
+			FileOutputFormat.setOutputPath(job, new Path("target/test/testfile5"));
+			job.waitForCompletion(true);
+
+			BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(new Path("target/test/testfile5/part-r-00000"))));
+			Assert.assertEquals("This\t10000", br.readLine());
+			Assert.assertEquals("is\t10000", br.readLine());
+			Assert.assertEquals("line\t10000", br.readLine());
+			br.close();
+		} catch(Exception e) {
+			e.printStackTrace();
+			Assert.fail();
+		} finally {
+			FileUtil.fullyDelete(new File("target/test/testfile5"));
+			FileUtil.fullyDelete(new File("target/test/testfile4.gz"));
+		}
+	}
+
 	@Test
 	public void testSplittableGZipCodec() {
 		try {